@@ -28,6 +28,134 @@ public class EmailDispatchConfiguration {
                 description = "If true, To and Cc recipients will be treated as Bcc recipients. The dispatcher does not guarantee the visibility of these types of recipients in sent emails. This flag exists for the cases where it may be preferable to guarantee that none are visible.")
         public Boolean recipientsAsBccs();
 
+        @ConfigurationProperty(key = "mailSender.batching", defaultValue = "window",
+                description = "How recipients are split into mime messages: 'window' fills each message regardless of destination, 'domain' only batches recipients of the same destination domain together")
+        public String mailSenderBatching();
+
+        @ConfigurationProperty(key = "mailSender.batching.mx",
+                description = "Stand-in for MX resolution when batching by domain, as a comma separated list of domain=mailExchanger. Domains sharing a mail exchanger are batched together")
+        public String mailSenderBatchingMxHosts();
+
+        @ConfigurationProperty(key = "mailSender.planning.chunk", defaultValue = "2000",
+                description = "Number of recipients resolved into mime messages per transaction when planning the delivery of a message")
+        public Integer mailSenderPlanningChunk();
+
+        @ConfigurationProperty(key = "mailSender.suppress.invalid", defaultValue = "true",
+                description = "If true, addresses blacklisted as invalid are skipped when planning the delivery of a message")
+        public Boolean mailSenderSuppressInvalid();
+
+        @ConfigurationProperty(key = "mailSender.suppress.failures", defaultValue = "20",
+                description = "Decayed count of failed deliveries after which an address is skipped when planning the delivery of a message. Zero never skips failed addresses")
+        public Integer mailSenderSuppressFailures();
+
+        @ConfigurationProperty(key = "mailSender.failures.halflife", defaultValue = "10",
+                description = "Days after which the count of failed deliveries of an address decays to half")
+        public Integer mailSenderFailuresHalfLife();
+
+        @ConfigurationProperty(key = "mailSender.failures.index.ttl", defaultValue = "300000",
+                description = "Milliseconds after which the index of invalid and failing addresses is checked for changes made by other nodes, and rebuilt if there are any")
+        public Long mailSenderFailuresIndexTtl();
+
+        @ConfigurationProperty(key = "mailSender.blacklist.flush.interval", defaultValue = "5000",
+                description = "Milliseconds between writes of the addresses found invalid or failing to the blacklist")
+        public Long mailSenderBlacklistFlushInterval();
+
+        @ConfigurationProperty(key = "mailSender.blacklist.flush.attempts", defaultValue = "5",
+                description = "Number of flushes that may fail to write an address to the blacklist before it is logged and dropped")
+        public Integer mailSenderBlacklistFlushAttempts();
+
+        @ConfigurationProperty(key = "mailSender.pool.size", defaultValue = "4",
+                description = "Maximum number of simultaneously open SMTP connections")
+        public Integer mailSenderPoolSize();
+
+        @ConfigurationProperty(key = "mailSender.pool.idle.timeout", defaultValue = "60000",
+                description = "Milliseconds after which an unused SMTP connection is closed instead of reused")
+        public Long mailSenderPoolIdleTimeout();
+
+        @ConfigurationProperty(key = "mailSender.pool.health.check", defaultValue = "10000",
+                description = "Milliseconds of inactivity after which a pooled SMTP connection is checked with a NOOP before reuse")
+        public Long mailSenderPoolHealthCheck();
+
+        @ConfigurationProperty(key = "mailSender.pool.borrow.timeout", defaultValue = "30000",
+                description = "Milliseconds to wait for a free SMTP connection before giving up on a delivery")
+        public Long mailSenderPoolBorrowTimeout();
+
+        @ConfigurationProperty(key = "mailSender.pool.max.messages", defaultValue = "100",
+                description = "Number of messages sent through an SMTP connection before it is recycled")
+        public Integer mailSenderPoolMaxMessages();
+
+        @ConfigurationProperty(key = "mailSender.dispatch.eager", defaultValue = "true",
+                description = "If true, messages are dispatched and delivered as soon as they are sent, leaving the periodic tasks as a fallback")
+        public Boolean mailSenderEagerDispatch();
+
+        @ConfigurationProperty(key = "mailSender.fairshare.weights",
+                description = "Share of delivery given to each sender while several have mail waiting, as a comma separated list of senderAddress=weight. Senders not listed have weight 1")
+        public String mailSenderFairShareWeights();
+
+        @ConfigurationProperty(key = "mailSender.delivery.parallelism", defaultValue = "4",
+                description = "Number of mime messages delivered concurrently")
+        public Integer mailSenderParallelism();
+
+        @ConfigurationProperty(key = "mailSender.node.id",
+                description = "Identifies this node in the leases of the mime messages it is delivering. Defaults to the JVM name, pid@hostname")
+        public String mailSenderNodeId();
+
+        @ConfigurationProperty(key = "mailSender.lease.duration", defaultValue = "300000",
+                description = "Milliseconds a node holds a mime message it is delivering, after which another node may take it over. Must exceed the time to send a message")
+        public Long mailSenderLeaseDuration();
+
+        @ConfigurationProperty(key = "mailSender.spool.dir",
+                description = "Directory where encoded messages and attachments are spooled while being delivered. Defaults to a folder in java.io.tmpdir")
+        public String mailSenderSpoolDirectory();
+
+        @ConfigurationProperty(key = "mailSender.spool.size", defaultValue = "1024",
+                description = "Megabytes of encoded messages, and separately of attachments, kept in the spool")
+        public Integer mailSenderSpoolSize();
+
+        @ConfigurationProperty(key = "mailSender.domain.rate", defaultValue = "3000",
+                description = "Maximum recipients per minute sent to a single destination domain")
+        public Integer mailSenderDomainRate();
+
+        @ConfigurationProperty(key = "mailSender.domain.burst", defaultValue = "500",
+                description = "Recipients that may be sent to a single destination domain in a burst before its rate applies")
+        public Integer mailSenderDomainBurst();
+
+        @ConfigurationProperty(key = "mailSender.domain.connections", defaultValue = "2",
+                description = "Maximum concurrent deliveries to a single destination domain. Only mime messages to that domain alone count, so it applies when batching by domain")
+        public Integer mailSenderDomainConnections();
+
+        @ConfigurationProperty(key = "mailSender.domain.backoff", defaultValue = "30000",
+                description = "Milliseconds a domain is backed off after its first temporary (4xx) reply, doubled on each consecutive one")
+        public Long mailSenderDomainBackoff();
+
+        @ConfigurationProperty(key = "mailSender.domain.backoff.max", defaultValue = "900000",
+                description = "Maximum milliseconds a domain is backed off after temporary (4xx) replies")
+        public Long mailSenderDomainMaxBackoff();
+
+        @ConfigurationProperty(key = "mailSender.domain.limits",
+                description = "Per domain overrides of rate and connections, as a comma separated list of domain=ratePerMinute:connections")
+        public String mailSenderDomainLimits();
+
+        @ConfigurationProperty(key = "mailSender.domain.defer.max", defaultValue = "60000",
+                description = "Deliveries to domains throttled for longer than these milliseconds are left for the next run")
+        public Long mailSenderDomainMaxDeferral();
+
+        @ConfigurationProperty(key = "mailSender.retry.base", defaultValue = "60000",
+                description = "Milliseconds before the first retry of a transiently failed delivery, doubled on each further attempt")
+        public Long mailSenderRetryBase();
+
+        @ConfigurationProperty(key = "mailSender.retry.max", defaultValue = "21600000",
+                description = "Maximum milliseconds between retries of a transiently failed delivery")
+        public Long mailSenderRetryMax();
+
+        @ConfigurationProperty(key = "mailSender.retry.attempts", defaultValue = "8",
+                description = "Attempts after which a transiently failing delivery is counted as failed")
+        public Integer mailSenderRetryAttempts();
+
+        @ConfigurationProperty(key = "mailSender.retry.max.age", defaultValue = "72",
+                description = "Hours after the first attempt after which a transiently failing delivery is counted as failed")
+        public Integer mailSenderRetryMaxAge();
+
     }
 
     public static ConfigurationProperties getConfiguration() {
@@ -8,7 +8,12 @@ import org.fenixedu.messaging.core.dispatch.MessageDispatcher;
 import org.fenixedu.messaging.core.domain.Message;
 import org.fenixedu.messaging.core.domain.MessageDispatchReport;
 import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.emaildispatch.delivery.BlacklistBuffer;
+import org.fenixedu.messaging.emaildispatch.delivery.DeliveryEngine;
+import org.fenixedu.messaging.emaildispatch.delivery.DispatchService;
+import org.fenixedu.messaging.emaildispatch.domain.EmailBlacklist;
 import org.fenixedu.messaging.emaildispatch.domain.LocalEmailMessageDispatchReport;
+import org.fenixedu.messaging.emaildispatch.domain.MimeMessageHandler;
 
 @WebListener
 public class EmailDispatcherContextListener implements ServletContextListener {
@@ -21,11 +26,19 @@ public class EmailDispatcherContextListener implements ServletContextListener {
 
     @Override
     public void contextInitialized(ServletContextEvent sce) {
+        EmailBlacklist.migrate();
+        EmailBlacklist.initFailureCounters();
+        BlacklistBuffer.start();
         MessagingSystem.setMessageDispatcher(new LocalEmailMessageDispatcher());
+        DispatchService.start(EmailDispatchConfiguration.getConfiguration().mailSenderEagerDispatch());
     }
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
+        DispatchService.stop();
         MessagingSystem.setMessageDispatcher(null);
+        DeliveryEngine.shutdown();
+        MimeMessageHandler.shutdownTransportPool();
+        BlacklistBuffer.stop();
     }
 }
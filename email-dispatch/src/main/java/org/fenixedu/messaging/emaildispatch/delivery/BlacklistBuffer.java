@@ -0,0 +1,112 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.domain.EmailBlacklist;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Collects the addresses to blacklist in memory and writes them to the {@link EmailBlacklist} in a single transaction per
+ * interval, so that the transactions recording deliveries and planning messages never touch the blacklist, and do not
+ * conflict with each other over it. Addresses must only be added once the transaction that found them committed, and
+ * are lost if the server stops abruptly before they are flushed, or dropped after failing to be written a number of times,
+ * which only means they are found again next time.
+ */
+public final class BlacklistBuffer {
+    private static final Logger logger = LoggerFactory.getLogger(BlacklistBuffer.class);
+    private static final long INTERVAL = EmailDispatchConfiguration.getConfiguration().mailSenderBlacklistFlushInterval();
+    private static final int ATTEMPTS = EmailDispatchConfiguration.getConfiguration().mailSenderBlacklistFlushAttempts();
+
+    private static final class Entry {
+        private final String address;
+        private final boolean invalid;
+        private final int attempts;
+
+        private Entry(String address, boolean invalid, int attempts) {
+            this.address = address;
+            this.invalid = invalid;
+            this.attempts = attempts;
+        }
+    }
+
+    private static final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+    private static ScheduledExecutorService flusher = null;
+
+    public static synchronized void start() {
+        if (flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("email-blacklist").setDaemon(true).build());
+            flusher.scheduleWithFixedDelay(BlacklistBuffer::flush, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static synchronized void stop() {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flusher = null;
+            flush();
+        }
+    }
+
+    public static void addInvalidAddress(String address) {
+        entries.offer(new Entry(address, true, 0));
+    }
+
+    public static void addFailedAddress(String address) {
+        entries.offer(new Entry(address, false, 0));
+    }
+
+    private static void flush() {
+        List<Entry> batch = new ArrayList<>(), retries = new ArrayList<>();
+        for (Entry entry = entries.poll(); entry != null; entry = entries.poll()) {
+            (entry.attempts == 0 ? batch : retries).add(entry);
+        }
+        if (!batch.isEmpty()) {
+            attempt(batch);
+        }
+        // addresses that failed a batch are retried one by one, so that one that cannot be written does not fail the rest
+        retries.forEach(entry -> attempt(Collections.singletonList(entry)));
+    }
+
+    private static void attempt(List<Entry> batch) {
+        try {
+            write(batch);
+        } catch (RuntimeException e) {
+            logger.error("Could not blacklist {} addresses, retrying on the next flush", batch.size(), e);
+            for (Entry entry : batch) {
+                if (entry.attempts + 1 < ATTEMPTS) {
+                    entries.offer(new Entry(entry.address, entry.invalid, entry.attempts + 1));
+                } else {
+                    logger.error("Dropping {} address {} after {} failed attempts to blacklist it",
+                            entry.invalid ? "invalid" : "failing", entry.address, ATTEMPTS);
+                }
+            }
+        }
+    }
+
+    @Atomic(mode = TxMode.WRITE)
+    private static void write(List<Entry> batch) {
+        List<String> invalid = new ArrayList<>(), failed = new ArrayList<>();
+        batch.forEach(entry -> (entry.invalid ? invalid : failed).add(entry.address));
+        EmailBlacklist.getInstance().addAddresses(invalid, failed);
+    }
+}
@@ -0,0 +1,264 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+
+import org.fenixedu.messaging.core.domain.MessagePriority;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.delivery.DomainThrottle.Feedback;
+import org.fenixedu.messaging.emaildispatch.domain.MimeMessageHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Bounded worker pool delivering mime message handlers concurrently. Each handler is claimed before being handed to a
+ * worker, so the same handler is never in flight twice even if several runs overlap, and leased in the domain before
+ * being sent, so that several nodes deliver disjoint handlers of the same reports. It is only attempted once its
+ * destination domains have capacity according to the {@link DomainThrottle}. Handlers waiting for a retry are skipped
+ * until it is due, as scheduled by the {@link RetryPolicy}. Waiting handlers are served in order of the
+ * {@link MessagePriority} of their message, and in the order they were submitted within the same lane, so that the
+ * interleaving of a {@link FairShareScheduler} is kept. The number of handlers waiting per sender is exposed by
+ * {@link #getQueueDepths()}.
+ */
+public final class DeliveryEngine {
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryEngine.class);
+
+    private static DeliveryEngine instance = null;
+
+    private final ExecutorService workers;
+    private final ScheduledExecutorService deferrals;
+    private final DomainThrottle throttle = DomainThrottle.getInstance();
+    private final long maxDeferral = EmailDispatchConfiguration.getConfiguration().mailSenderDomainMaxDeferral();
+    private final String node;
+    private final long leaseDuration;
+    private final Deliverer deliverer;
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, Integer> queued = new ConcurrentHashMap<>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Sends a claimed handler and records its outcome, see {@link MimeMessageHandler#deliver()}.
+     */
+    @FunctionalInterface
+    interface Deliverer {
+        Set<String> deliver(MimeMessageHandler handler) throws MessagingException;
+    }
+
+    /* Queued deliveries are served by ascending deadline, derived from the priority of their message and the time they were
+     * submitted, so that higher lanes are drained first without starving the lower ones. Handlers submitted together share
+     * the same submission time, so those of the same lane keep their order. */
+    private final class Delivery implements Runnable, Comparable<Delivery> {
+        private final MimeMessageHandler handler;
+        private final String id;
+        private final CompletableFuture<Void> done;
+        private final long deadline, order = sequence.getAndIncrement();
+
+        private Delivery(MimeMessageHandler handler, String id, CompletableFuture<Void> done, MessagePriority priority,
+                long submitted) {
+            this.handler = handler;
+            this.id = id;
+            this.done = done;
+            this.deadline = priority.deadline(submitted);
+        }
+
+        @Override
+        public void run() {
+            attempt(this);
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            int c = Long.compare(deadline, other.deadline);
+            return c != 0 ? c : Long.compare(order, other.order);
+        }
+    }
+
+    private DeliveryEngine(int parallelism) {
+        this(parallelism, nodeId(), EmailDispatchConfiguration.getConfiguration().mailSenderLeaseDuration(),
+                MimeMessageHandler::deliver);
+    }
+
+    /* Also runs the engines of several nodes in a single process. */
+    DeliveryEngine(int parallelism, String node, long leaseDuration, Deliverer deliverer) {
+        this.node = node;
+        this.leaseDuration = leaseDuration;
+        this.deliverer = deliverer;
+        this.workers = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("email-delivery-%d").setDaemon(true).build());
+        this.deferrals = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("email-delivery-deferrals").setDaemon(true).build());
+    }
+
+    private static String nodeId() {
+        String node = EmailDispatchConfiguration.getConfiguration().mailSenderNodeId();
+        // pid@hostname unless configured
+        return Strings.isNullOrEmpty(node) ? ManagementFactory.getRuntimeMXBean().getName() : node;
+    }
+
+    public static synchronized DeliveryEngine getInstance() {
+        if (instance == null) {
+            instance = new DeliveryEngine(Math.max(1, EmailDispatchConfiguration.getConfiguration().mailSenderParallelism()));
+        }
+        return instance;
+    }
+
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.stop();
+            instance = null;
+        }
+    }
+
+    void stop() {
+        deferrals.shutdownNow().forEach(Runnable::run);
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Delivers the given handlers and waits until every one of them has been attempted. Handlers whose destination
+     * domains are throttled are deferred without holding a worker, or left for a later run if the wait is too long.
+     */
+    public void deliver(Collection<MimeMessageHandler> handlers) {
+        try {
+            submit(handlers).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("Unexpected error delivering email", e.getCause());
+        }
+    }
+
+    /**
+     * Delivers the given handlers without waiting for them.
+     *
+     * @return a future completed once every one of the handlers has been attempted
+     */
+    public CompletableFuture<Void> submit(Collection<MimeMessageHandler> handlers) {
+        long submitted = System.currentTimeMillis();
+        List<CompletableFuture<Void>> pending = new ArrayList<>(handlers.size());
+        for (MimeMessageHandler handler : handlers) {
+            pending.add(submit(handler, submitted).exceptionally(error -> {
+                logger.error("Unexpected error delivering email", error);
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture[pending.size()]));
+    }
+
+    private CompletableFuture<Void> submit(MimeMessageHandler handler, long submitted) {
+        final String id = handler.getExternalId();
+        if (RetryIndex.isWaiting(id) || !inFlight.add(id)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final String sender = Strings.nullToEmpty(handler.getSenderAddress());
+        queued.merge(sender, 1, Integer::sum);
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        done.whenComplete((result, error) -> {
+            queued.computeIfPresent(sender, (s, n) -> n > 1 ? n - 1 : null);
+            inFlight.remove(id);
+        });
+        execute(new Delivery(handler, id, done, handler.getPriority(), submitted));
+        return done;
+    }
+
+    /**
+     * @return the number of handlers submitted and not yet attempted, per sender address
+     */
+    public Map<String, Integer> getQueueDepths() {
+        return Collections.unmodifiableMap(new HashMap<>(queued));
+    }
+
+    private void execute(Delivery delivery) {
+        try {
+            workers.execute(delivery);
+        } catch (RuntimeException e) {
+            delivery.done.completeExceptionally(e);
+        }
+    }
+
+    private void attempt(Delivery delivery) {
+        final MimeMessageHandler handler = delivery.handler;
+        final String id = delivery.id;
+        final CompletableFuture<Void> done = delivery.done;
+        boolean claimed = false, delivering = false;
+        try {
+            if (!handler.claim(node, leaseDuration)) {
+                done.complete(null);
+                return;
+            }
+            claimed = true;
+            Multiset<String> domains = handler.getRecipientDomains();
+            DomainThrottle.Permit permit = throttle.tryAcquire(domains);
+            if (permit == null) {
+                long delay = throttle.delay(domains);
+                if (delay > maxDeferral) {
+                    logger.debug("Leaving mime message handler {} for a later run, its domains are throttled for {}ms", id, delay);
+                    handler.release(node);
+                    done.complete(null);
+                } else {
+                    deferrals.schedule(() -> execute(delivery), delay, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            // only the domains that refused recipients are backed off, not every domain batched with them
+            Set<String> deferred = Collections.emptySet();
+            Feedback others = Feedback.FAILED;
+            delivering = true;
+            try {
+                deferred = deliverer.deliver(handler);
+                others = Feedback.ACCEPTED;
+            } catch (MessagingException e) {
+                deferred = DomainThrottle.deferredDomains(e, domains.elementSet());
+                logger.error("Error sending mime message handler " + id, e);
+            } finally {
+                permit.release(deferred, others);
+            }
+            done.complete(null);
+        } catch (RuntimeException e) {
+            // the deliverer records its own failed attempts, and once it sent the message a failed attempt would send it
+            // again, so only failures before it was called are recorded here
+            if (claimed && !delivering) {
+                // otherwise the handler would only be taken again once its lease expires, and never be given up
+                try {
+                    handler.failedAttempt();
+                } catch (RuntimeException f) {
+                    e.addSuppressed(f);
+                }
+            }
+            done.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.fenixedu.bennu.MessagingConfiguration;
+import org.fenixedu.bennu.core.signals.DomainObjectEvent;
+import org.fenixedu.bennu.core.signals.Signal;
+import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.core.domain.MessageDispatchReport;
+import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.emaildispatch.domain.LocalEmailMessageDispatchReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+import pt.ist.fenixframework.FenixFramework;
+
+/**
+ * Dispatches messages as soon as they are sent instead of waiting for the periodic tasks. Sending a message signals it
+ * once its transaction commits, the message is then dispatched by a single thread and its recipients planned in chunks,
+ * each chunk of mime messages being handed to the {@link DeliveryEngine} while the next is planned. The periodic tasks
+ * still pick up anything this service missed, such as messages sent while it was stopped or on another server, and
+ * resume here the planning of reports left unfinished.
+ */
+public final class DispatchService {
+    private static final Logger logger = LoggerFactory.getLogger(DispatchService.class);
+
+    private static DispatchService instance = null;
+    private static boolean registered = false;
+
+    private final BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+    private final Set<String> planning = ConcurrentHashMap.newKeySet();
+    private final ExecutorService planner = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("email-dispatch").setDaemon(true).build());
+    private final ExecutorService deliveries = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("email-dispatch-delivery-%d").setDaemon(true).build());
+
+    private DispatchService() {
+        planner.execute(this::run);
+    }
+
+    /**
+     * @param eager whether messages are dispatched as soon as they are sent, instead of only by the periodic task
+     */
+    public static synchronized void start(boolean eager) {
+        if (eager && !registered) {
+            Signal.registerWithoutTransaction(MessagingConfiguration.MESSAGE_SENT,
+                    (DomainObjectEvent<Message> event) -> wake(event.getInstance()));
+            registered = true;
+        }
+        if (instance == null) {
+            instance = new DispatchService();
+        }
+    }
+
+    public static synchronized void stop() {
+        if (instance != null) {
+            instance.planner.shutdownNow();
+            instance.deliveries.shutdown();
+            try {
+                instance.deliveries.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            instance = null;
+        }
+    }
+
+    private static synchronized void wake(Message message) {
+        if (instance != null) {
+            instance.sent.offer(message.getExternalId());
+        }
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                dispatch(sent.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error dispatching message", e);
+            }
+        }
+    }
+
+    private void dispatch(String id) {
+        long start = System.currentTimeMillis();
+        Message message = FenixFramework.getDomainObject(id);
+        MessageDispatchReport report = MessagingSystem.dispatch(message);
+        if (report instanceof LocalEmailMessageDispatchReport) {
+            logger.info("Dispatched message: {} in {}ms", id, System.currentTimeMillis() - start);
+            // dispatching the next message does not wait for this one to be planned and delivered
+            plan((LocalEmailMessageDispatchReport) report);
+        }
+    }
+
+    /**
+     * Plans and delivers the given report in the background, unless this node is already doing so.
+     */
+    public static synchronized void resume(LocalEmailMessageDispatchReport report) {
+        if (instance != null) {
+            instance.plan(report);
+        }
+    }
+
+    private void plan(LocalEmailMessageDispatchReport report) {
+        String id = report.getExternalId();
+        if (planning.add(id)) {
+            try {
+                deliveries.execute(() -> {
+                    try {
+                        planAndDeliver(report);
+                    } finally {
+                        planning.remove(id);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                planning.remove(id);
+                logger.debug("Leaving delivery of report {} to the periodic task", id);
+            }
+        }
+    }
+
+    private static void planAndDeliver(LocalEmailMessageDispatchReport report) {
+        DeliveryEngine engine = DeliveryEngine.getInstance();
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        try {
+            report.plan(handlers -> pending.add(engine.submit(handlers)));
+        } catch (RuntimeException e) {
+            logger.error("Error planning report " + report.getExternalId(), e);
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture[pending.size()])).join();
+        deliver(report);
+        // in a transaction of its own, which sees the handlers delivered since
+        LocalEmailMessageDispatchReport.finishIfDone(Collections.singleton(report));
+    }
+
+    @Atomic(mode = TxMode.READ)
+    private static void deliver(LocalEmailMessageDispatchReport report) {
+        // whatever is left, such as handlers planned elsewhere or resent
+        report.deliver();
+    }
+}
@@ -0,0 +1,272 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.MessagingException;
+
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration.ConfigurationProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Multiset;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+/**
+ * Per destination domain scheduling of outbound mail. Each domain has its own token bucket of recipients, a cap on
+ * concurrent deliveries and an adaptive rate: temporary (4xx) replies halve the rate and back the domain off, while
+ * accepted deliveries slowly raise it again up to the configured maximum. A throttled domain never holds back
+ * deliveries to other domains, and only the domains that replied with a 4xx are backed off. Only deliveries to a single
+ * domain take one of its connections: deliveries mixing several domains, as batched by window, would otherwise take a
+ * connection of each of them and serialize every delivery that shares a large domain.
+ */
+public final class DomainThrottle {
+    private static final Logger logger = LoggerFactory.getLogger(DomainThrottle.class);
+
+    private static final double MIN_RATE_FRACTION = 0.05, RATE_INCREASE_FRACTION = 0.05;
+    private static final long MIN_DELAY = 50;
+
+    public enum Feedback {
+        ACCEPTED, DEFERRED, FAILED
+    }
+
+    private static final class Limits {
+        private final double ratePerSecond;
+        private final int connections;
+
+        private Limits(double ratePerMinute, int connections) {
+            this.ratePerSecond = ratePerMinute / 60d;
+            this.connections = Math.max(1, connections);
+        }
+    }
+
+    private final class DomainState {
+        private final String domain;
+        private final Limits limits;
+        private double rate, tokens;
+        private long lastRefill = System.currentTimeMillis(), backoffUntil = 0, backoff = 0;
+        private int active = 0;
+
+        private DomainState(String domain, Limits limits) {
+            this.domain = domain;
+            this.limits = limits;
+            this.rate = limits.ratePerSecond;
+            this.tokens = burst;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) / 1000d * rate);
+            lastRefill = now;
+        }
+
+        private synchronized boolean tryAcquire(int recipients, boolean connection, long now) {
+            refill(now);
+            // batches larger than the bucket are let through on a full bucket, leaving it in debt
+            if (now < backoffUntil || connection && active >= limits.connections || tokens < Math.min(recipients, burst)) {
+                return false;
+            }
+            tokens -= recipients;
+            if (connection) {
+                active++;
+            }
+            return true;
+        }
+
+        private synchronized void cancel(int recipients, boolean connection) {
+            if (connection) {
+                active--;
+            }
+            tokens += recipients;
+        }
+
+        private synchronized void release(Feedback feedback, boolean connection, long now) {
+            if (connection) {
+                active--;
+            }
+            if (feedback == Feedback.DEFERRED) {
+                rate = Math.max(limits.ratePerSecond * MIN_RATE_FRACTION, rate / 2);
+                backoff = backoff == 0 ? baseBackoff : Math.min(maxBackoff, backoff * 2);
+                backoffUntil = now + backoff;
+                logger.warn("Domain {} deferred delivery, backing off for {}ms at {} recipients/minute", domain, backoff,
+                        Math.round(rate * 60));
+            } else if (feedback == Feedback.ACCEPTED) {
+                rate = Math.min(limits.ratePerSecond, rate + limits.ratePerSecond * RATE_INCREASE_FRACTION);
+                backoff = 0;
+            }
+        }
+
+        private synchronized long delay(int recipients, long now) {
+            refill(now);
+            long wait = Math.max(0, backoffUntil - now);
+            double missing = Math.min(recipients, burst) - tokens;
+            if (missing > 0) {
+                wait = Math.max(wait, (long) Math.ceil(missing / rate * 1000));
+            }
+            return wait;
+        }
+    }
+
+    /**
+     * Concurrency slots and recipient tokens taken from the domains of a delivery, to be released once it is attempted.
+     */
+    public final class Permit {
+        private final List<DomainState> states;
+        private final boolean connection;
+
+        private Permit(List<DomainState> states, boolean connection) {
+            this.states = states;
+            this.connection = connection;
+        }
+
+        public void release(Feedback feedback) {
+            release(Collections.emptySet(), feedback);
+        }
+
+        /**
+         * Releases the permit, backing off the given domains, that deferred the delivery, and giving the feedback of the
+         * attempt to the others.
+         */
+        public void release(Set<String> deferred, Feedback others) {
+            long now = System.currentTimeMillis();
+            states.forEach(state -> state.release(deferred.contains(state.domain) ? Feedback.DEFERRED : others, connection,
+                    now));
+        }
+    }
+
+    private static DomainThrottle instance = null;
+
+    private final ConcurrentMap<String, DomainState> domains = new ConcurrentHashMap<>();
+    private final Map<String, Limits> overrides = new HashMap<>();
+    private final Limits defaults;
+    private final double burst;
+    private final long baseBackoff, maxBackoff;
+
+    private DomainThrottle() {
+        final ConfigurationProperties conf = EmailDispatchConfiguration.getConfiguration();
+        this.defaults = new Limits(conf.mailSenderDomainRate(), conf.mailSenderDomainConnections());
+        this.burst = Math.max(1, conf.mailSenderDomainBurst());
+        this.baseBackoff = conf.mailSenderDomainBackoff();
+        this.maxBackoff = Math.max(baseBackoff, conf.mailSenderDomainMaxBackoff());
+        String limits = conf.mailSenderDomainLimits();
+        if (!Strings.isNullOrEmpty(limits)) {
+            // domain=ratePerMinute:connections
+            Splitter.on(',').trimResults().omitEmptyStrings().withKeyValueSeparator('=').split(limits).forEach((domain, value) -> {
+                List<String> parts = Splitter.on(':').trimResults().splitToList(value);
+                overrides.put(domain.toLowerCase(Locale.ROOT), new Limits(Double.parseDouble(parts.get(0)),
+                        parts.size() > 1 ? Integer.parseInt(parts.get(1)) : defaults.connections));
+            });
+        }
+    }
+
+    public static synchronized DomainThrottle getInstance() {
+        if (instance == null) {
+            instance = new DomainThrottle();
+        }
+        return instance;
+    }
+
+    public static String domainOf(String address) {
+        int at = address.lastIndexOf('@');
+        return at < 0 ? "" : address.substring(at + 1).trim().toLowerCase(Locale.ROOT);
+    }
+
+    private DomainState state(String domain) {
+        return domains.computeIfAbsent(domain, d -> new DomainState(d, overrides.getOrDefault(d, defaults)));
+    }
+
+    /**
+     * Tries to take capacity for a delivery to the given recipient domains, counted by recipient, and a connection of
+     * the domain if there is only one.
+     *
+     * @return the permit to release after the delivery, or null if any of the domains is currently throttled
+     */
+    public Permit tryAcquire(Multiset<String> recipientDomains) {
+        long now = System.currentTimeMillis();
+        boolean connection = recipientDomains.elementSet().size() == 1;
+        List<DomainState> acquired = new ArrayList<>();
+        // sorted so that deliveries spanning several domains acquire them in a consistent order
+        for (String domain : ImmutableSortedSet.copyOf(recipientDomains.elementSet())) {
+            DomainState state = state(domain);
+            if (!state.tryAcquire(recipientDomains.count(domain), connection, now)) {
+                acquired.forEach(s -> s.cancel(recipientDomains.count(s.domain), connection));
+                return null;
+            }
+            acquired.add(state);
+        }
+        return new Permit(acquired, connection);
+    }
+
+    /**
+     * @return milliseconds until every one of the given domains is expected to accept the delivery
+     */
+    public long delay(Multiset<String> recipientDomains) {
+        long now = System.currentTimeMillis();
+        return Math.max(MIN_DELAY, recipientDomains.elementSet().stream()
+                .mapToLong(domain -> state(domain).delay(recipientDomains.count(domain), now)).max().orElse(0));
+    }
+
+    /**
+     * @return whether the exception, or any exception it chains, is a temporary (4xx) SMTP reply
+     */
+    public static boolean isDeferral(Exception exception) {
+        while (exception != null) {
+            if (isDeferralCode(returnCode(exception))) {
+                return true;
+            }
+            exception = next(exception);
+        }
+        return false;
+    }
+
+    /**
+     * @return the domains refused with a temporary (4xx) SMTP reply in the exception or the exceptions it chains: those of
+     *         the recipients refused one by one, or every one of the given domains of the message if it was refused as a
+     *         whole
+     */
+    public static Set<String> deferredDomains(Exception exception, Set<String> domains) {
+        Set<String> deferred = new HashSet<>();
+        while (exception != null) {
+            if (isDeferralCode(returnCode(exception))) {
+                if (!(exception instanceof SMTPAddressFailedException)) {
+                    return domains;
+                }
+                deferred.add(domainOf(((SMTPAddressFailedException) exception).getAddress().getAddress()));
+            }
+            exception = next(exception);
+        }
+        return deferred;
+    }
+
+    private static int returnCode(Exception exception) {
+        if (exception instanceof SMTPSendFailedException) {
+            return ((SMTPSendFailedException) exception).getReturnCode();
+        } else if (exception instanceof SMTPAddressFailedException) {
+            return ((SMTPAddressFailedException) exception).getReturnCode();
+        } else if (exception instanceof SMTPSenderFailedException) {
+            return ((SMTPSenderFailedException) exception).getReturnCode();
+        }
+        return 0;
+    }
+
+    private static boolean isDeferralCode(int code) {
+        return code >= 400 && code < 500;
+    }
+
+    private static Exception next(Exception exception) {
+        return exception instanceof MessagingException ? ((MessagingException) exception).getNextException() : null;
+    }
+}
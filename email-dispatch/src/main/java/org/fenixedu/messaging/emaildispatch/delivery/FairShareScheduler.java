@@ -0,0 +1,138 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.domain.LocalEmailMessageDispatchReport;
+import org.fenixedu.messaging.emaildispatch.domain.MimeMessageHandler;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+
+/**
+ * Weighted fair queuing of mime message handlers across senders. Each sender's handlers are tagged with a virtual finish
+ * time that grows by the inverse of the sender's weight with every handler, and handlers are delivered by ascending tag.
+ * A sender with a small message is therefore interleaved with, instead of queued behind, a sender with a mass mailing,
+ * and a sender with weight 2 gets twice the share of one with weight 1 while both have handlers waiting.
+ *
+ * The {@link DeliveryEngine} serves the handlers of a schedule in this order within each priority lane, but serves higher
+ * lanes first, so the share of each sender only holds among handlers of the same lane. Handlers submitted to the engine
+ * outside of a schedule, such as those of messages delivered as soon as they are sent, queue behind the scheduled ones of
+ * their lane.
+ */
+public final class FairShareScheduler {
+
+    /**
+     * Handlers in delivery order, along with how many of them each sender had waiting.
+     */
+    public static final class Schedule {
+        private final List<MimeMessageHandler> handlers;
+        private final Map<String, Integer> queueDepths;
+
+        private Schedule(List<MimeMessageHandler> handlers, Map<String, Integer> queueDepths) {
+            this.handlers = handlers;
+            this.queueDepths = queueDepths;
+        }
+
+        public List<MimeMessageHandler> getHandlers() {
+            return Collections.unmodifiableList(handlers);
+        }
+
+        /**
+         * @return the number of handlers waiting per sender address, in order of the sender's first report
+         */
+        public Map<String, Integer> getQueueDepths() {
+            return Collections.unmodifiableMap(queueDepths);
+        }
+    }
+
+    private static final class SenderQueue<T> implements Comparable<SenderQueue<T>> {
+        private final List<T> items;
+        private final double weight;
+        private final int order;
+        private int next = 0;
+
+        private SenderQueue(List<T> items, double weight, int order) {
+            this.items = items;
+            this.weight = weight;
+            this.order = order;
+        }
+
+        private double finishTag() {
+            return (next + 1) / weight;
+        }
+
+        @Override
+        public int compareTo(SenderQueue<T> other) {
+            int c = Double.compare(finishTag(), other.finishTag());
+            return c != 0 ? c : Integer.compare(order, other.order);
+        }
+    }
+
+    private static FairShareScheduler instance = null;
+
+    private final Map<String, Double> weights = new HashMap<>();
+
+    FairShareScheduler(String weights) {
+        if (!Strings.isNullOrEmpty(weights)) {
+            // senderAddress=weight
+            Splitter.on(',').trimResults().omitEmptyStrings().withKeyValueSeparator('=').split(weights)
+                    .forEach((sender, weight) -> this.weights.put(sender.toLowerCase(Locale.ROOT),
+                            Math.max(Double.MIN_NORMAL, Double.parseDouble(weight.trim()))));
+        }
+    }
+
+    public static synchronized FairShareScheduler getInstance() {
+        if (instance == null) {
+            instance = new FairShareScheduler(EmailDispatchConfiguration.getConfiguration().mailSenderFairShareWeights());
+        }
+        return instance;
+    }
+
+    private double weight(String sender) {
+        return weights.getOrDefault(sender.toLowerCase(Locale.ROOT), 1d);
+    }
+
+    /**
+     * Interleaves the handlers of the given reports by sender. Handlers of the same sender keep the order of their reports.
+     */
+    public Schedule schedule(List<LocalEmailMessageDispatchReport> reports) {
+        Map<String, List<MimeMessageHandler>> handlers = new LinkedHashMap<>();
+        for (LocalEmailMessageDispatchReport report : reports) {
+            String sender = report.getMessage().getSender().getAddress();
+            handlers.computeIfAbsent(sender, s -> new ArrayList<>()).addAll(report.getHandlerSet());
+        }
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        handlers.forEach((sender, queue) -> depths.put(sender, queue.size()));
+        return new Schedule(interleave(handlers), depths);
+    }
+
+    /**
+     * @param queues the items of each sender, in the order they are to be delivered
+     * @return the items of every sender, by ascending virtual finish time
+     */
+    <T> List<T> interleave(Map<String, List<T>> queues) {
+        List<T> items = new ArrayList<>(queues.values().stream().mapToInt(List::size).sum());
+        PriorityQueue<SenderQueue<T>> backlogged = new PriorityQueue<>();
+        queues.forEach((sender, queue) -> {
+            if (!queue.isEmpty()) {
+                backlogged.add(new SenderQueue<>(queue, weight(sender), backlogged.size()));
+            }
+        });
+        while (!backlogged.isEmpty()) {
+            SenderQueue<T> queue = backlogged.poll();
+            items.add(queue.items.get(queue.next++));
+            if (queue.next < queue.items.size()) {
+                backlogged.add(queue);
+            }
+        }
+        return items;
+    }
+}
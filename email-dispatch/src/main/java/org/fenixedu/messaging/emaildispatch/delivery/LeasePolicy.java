@@ -0,0 +1,35 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import org.joda.time.DateTime;
+
+/**
+ * Rules by which several nodes share the delivery of the same reports. A node leases each handler it delivers, and a
+ * handler can be claimed by a node if it is due and either not leased or leased by the same node, or if the lease of
+ * another node expired, which happens when that node crashed while delivering it.
+ */
+public final class LeasePolicy {
+
+    private LeasePolicy() {
+    }
+
+    /**
+     * @return the instant until which the given node cannot claim a handler with the given next attempt and lease, or
+     *         null if it can claim it now
+     */
+    public static DateTime unavailableUntil(DateTime nextAttempt, String owner, DateTime expiry, String node, DateTime now) {
+        if (nextAttempt != null && nextAttempt.isAfter(now)) {
+            return nextAttempt;
+        }
+        if (owner != null && !owner.equals(node) && expiry != null && expiry.isAfter(now)) {
+            return expiry;
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the given node holds a lease with the given owner, and can give it up
+     */
+    public static boolean isHeldBy(String owner, String node) {
+        return node.equals(owner);
+    }
+}
@@ -0,0 +1,45 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.DateTime;
+
+/**
+ * In-memory index of handlers that cannot be attempted before a known time, either because they are waiting for a retry
+ * or because another node holds their lease, so that delivery runs skip them without opening a transaction. Handlers
+ * absent from the index are checked against the domain and added to it when they turn out not to be available.
+ */
+public final class RetryIndex {
+    private static final ConcurrentMap<String, Long> dueTimes = new ConcurrentHashMap<>();
+
+    private RetryIndex() {
+    }
+
+    public static void schedule(String handler, DateTime due) {
+        if (due == null) {
+            dueTimes.remove(handler);
+        } else {
+            dueTimes.put(handler, due.getMillis());
+        }
+    }
+
+    public static void remove(String handler) {
+        dueTimes.remove(handler);
+    }
+
+    /**
+     * @return true if the handler is known not to be available for delivery yet
+     */
+    public static boolean isWaiting(String handler) {
+        Long due = dueTimes.get(handler);
+        if (due == null) {
+            return false;
+        }
+        if (due > System.currentTimeMillis()) {
+            return true;
+        }
+        dueTimes.remove(handler, due);
+        return false;
+    }
+}
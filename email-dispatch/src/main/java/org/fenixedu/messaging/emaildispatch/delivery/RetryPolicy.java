@@ -0,0 +1,34 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration.ConfigurationProperties;
+import org.joda.time.DateTime;
+
+/**
+ * Exponential backoff with jitter for deliveries that failed for transient reasons, such as timeouts, dropped
+ * connections or temporary (4xx) replies, and the limits after which they are given up as failed.
+ */
+public final class RetryPolicy {
+    private static final ConfigurationProperties conf = EmailDispatchConfiguration.getConfiguration();
+
+    private RetryPolicy() {
+    }
+
+    /**
+     * @param attempts number of attempts made so far, including the one that just failed
+     * @return the instant of the next attempt, with the delay randomized between half and all of the backoff so that
+     * handlers failing together do not retry together
+     */
+    public static DateTime nextAttempt(int attempts) {
+        long backoff = conf.mailSenderRetryBase() << Math.min(30, Math.max(0, attempts - 1));
+        backoff = Math.min(conf.mailSenderRetryMax(), backoff);
+        return new DateTime().plus(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+    }
+
+    public static boolean isExhausted(int attempts, DateTime firstAttempt) {
+        return attempts >= conf.mailSenderRetryAttempts()
+                || firstAttempt != null && firstAttempt.plusHours(conf.mailSenderRetryMaxAge()).isBeforeNow();
+    }
+}
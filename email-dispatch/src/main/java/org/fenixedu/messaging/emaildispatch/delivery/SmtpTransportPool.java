@@ -0,0 +1,156 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration.ConfigurationProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of long-lived SMTP connections shared by every delivery, so that a dispatch run reuses a handful of connections
+ * instead of performing a full handshake for each batch of recipients.
+ */
+public final class SmtpTransportPool {
+    private static final Logger logger = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+    private static final class PooledTransport {
+        private final Transport transport;
+        private int sent = 0;
+        private long lastUsed = System.currentTimeMillis();
+
+        private PooledTransport(Transport transport) {
+            this.transport = transport;
+        }
+    }
+
+    private final Session session;
+    private final BlockingDeque<PooledTransport> idle = new LinkedBlockingDeque<>();
+    private final Semaphore available;
+    private final long idleTimeout, healthCheckAfter, borrowTimeout;
+    private final int maxMessages;
+    private volatile boolean closed = false;
+
+    public SmtpTransportPool(Session session) {
+        final ConfigurationProperties conf = EmailDispatchConfiguration.getConfiguration();
+        this.session = session;
+        this.available = new Semaphore(Math.max(1, conf.mailSenderPoolSize()), true);
+        this.idleTimeout = conf.mailSenderPoolIdleTimeout();
+        this.healthCheckAfter = conf.mailSenderPoolHealthCheck();
+        this.borrowTimeout = conf.mailSenderPoolBorrowTimeout();
+        this.maxMessages = Math.max(1, conf.mailSenderPoolMaxMessages());
+    }
+
+    /**
+     * Sends the message through a pooled connection. Messages are written as they are, so headers must already be
+     * complete. Connections are returned to the pool unless they broke while sending, in which case they are discarded
+     * and a new one is opened on the next borrow. A reused connection may have been dropped by the relay while idle
+     * without being checked, so if it breaks the message is sent once more through a new connection before giving up.
+     */
+    public void send(MimeMessage message) throws MessagingException {
+        PooledTransport pooled = borrow(false);
+        boolean reused = pooled.sent > 0;
+        try {
+            send(pooled, message);
+        } catch (SendFailedException e) {
+            throw e;
+        } catch (MessagingException e) {
+            if (!reused) {
+                throw e;
+            }
+            logger.debug("Pooled SMTP connection broke, sending through a new one", e);
+            send(borrow(true), message);
+        }
+    }
+
+    private void send(PooledTransport pooled, MimeMessage message) throws MessagingException {
+        boolean reusable = false;
+        try {
+            pooled.transport.sendMessage(message, message.getAllRecipients());
+            reusable = true;
+        } catch (SendFailedException e) {
+            // recipient level failures leave the connection in a usable state
+            reusable = true;
+            throw e;
+        } finally {
+            release(pooled, reusable);
+        }
+    }
+
+    private PooledTransport borrow(boolean fresh) throws MessagingException {
+        if (closed) {
+            throw new MessagingException("SMTP transport pool is closed");
+        }
+        try {
+            if (!available.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new MessagingException("Timed out waiting for an SMTP connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for an SMTP connection", e);
+        }
+        try {
+            PooledTransport pooled;
+            while (!fresh && (pooled = idle.pollFirst()) != null) {
+                if (isUsable(pooled)) {
+                    return pooled;
+                }
+                close(pooled);
+            }
+            Transport transport = session.getTransport("smtp");
+            transport.connect();
+            return new PooledTransport(transport);
+        } catch (MessagingException | RuntimeException e) {
+            available.release();
+            throw e;
+        }
+    }
+
+    private boolean isUsable(PooledTransport pooled) {
+        long idleFor = System.currentTimeMillis() - pooled.lastUsed;
+        if (idleFor > idleTimeout || pooled.sent >= maxMessages) {
+            return false;
+        }
+        // SMTPTransport.isConnected issues a NOOP, only pay for it on connections that sat idle for a while
+        return idleFor <= healthCheckAfter || pooled.transport.isConnected();
+    }
+
+    private void release(PooledTransport pooled, boolean reusable) {
+        try {
+            pooled.sent++;
+            pooled.lastUsed = System.currentTimeMillis();
+            if (reusable && !closed && pooled.sent < maxMessages) {
+                idle.offerFirst(pooled);
+            } else {
+                close(pooled);
+            }
+        } finally {
+            available.release();
+        }
+    }
+
+    private static void close(PooledTransport pooled) {
+        try {
+            pooled.transport.close();
+        } catch (MessagingException e) {
+            logger.debug("Error closing pooled SMTP connection", e);
+        }
+    }
+
+    public void shutdown() {
+        closed = true;
+        PooledTransport pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            close(pooled);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.util.SharedFileInputStream;
+
+import org.fenixedu.bennu.io.domain.GenericFile;
+import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import pt.ist.fenixframework.Atomic;
+import pt.ist.fenixframework.Atomic.TxMode;
+
+/**
+ * Local disk spool of attachments, each stored once as a complete, already transfer-encoded, mime body part. Parts are
+ * read back through {@link SharedFileInputStream}, so their content is streamed from disk instead of being loaded into
+ * the heap or encoded again.
+ */
+final class AttachmentSpool {
+    private static final Logger logger = LoggerFactory.getLogger(AttachmentSpool.class);
+
+    private static final class EncodedBodyPart extends MimeBodyPart {
+        private void encode(OutputStream out) throws IOException, MessagingException {
+            updateHeaders();
+            writeTo(out);
+        }
+    }
+
+    private static final RemovalListener<String, File> DELETE_FILE = notification -> delete(notification.getValue());
+
+    private static final Cache<String, File> spooled = CacheBuilder.newBuilder()
+            .maximumWeight(EmailDispatchConfiguration.getConfiguration().mailSenderSpoolSize() * 1024L * 1024L)
+            .weigher((String key, File file) -> (int) Math.min(Integer.MAX_VALUE, file.length()))
+            .removalListener(DELETE_FILE).build();
+
+    private AttachmentSpool() {
+    }
+
+    static File directory() throws IOException {
+        String path = EmailDispatchConfiguration.getConfiguration().mailSenderSpoolDirectory();
+        File dir = Strings.isNullOrEmpty(path) ? new File(System.getProperty("java.io.tmpdir"), "email-dispatch-spool") : new File(path);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create email spool directory " + dir.getAbsolutePath());
+        }
+        return dir;
+    }
+
+    static void delete(File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            logger.warn("Unable to delete spooled file {}", file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Opens the spooled body part of the given file, spooling it first if needed. The returned stream backs the part's
+     * content and must be closed once the part is no longer used.
+     */
+    static SharedFileInputStream open(GenericFile file) throws MessagingException {
+        try {
+            return new SharedFileInputStream(spooled.get(file.getExternalId(), () -> spool(file)));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof MessagingException) {
+                throw (MessagingException) e.getCause();
+            }
+            throw new MessagingException("Error spooling attachment " + file.getExternalId(), e.getCause());
+        } catch (IOException e) {
+            throw new MessagingException("Error reading spooled attachment " + file.getExternalId(), e);
+        }
+    }
+
+    static void evict(Message message) {
+        message.getFileSet().forEach(file -> spooled.invalidate(file.getExternalId()));
+    }
+
+    private static File spool(GenericFile file) throws MessagingException, IOException {
+        final String contentType = file.getContentType(), filename = file.getFilename();
+        final EncodedBodyPart bodyPart = new EncodedBodyPart();
+        bodyPart.setDataHandler(new DataHandler(new DataSource() {
+            @Override public InputStream getInputStream() {
+                return openStream(file);
+            }
+
+            @Override public OutputStream getOutputStream() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override public String getContentType() {
+                return contentType;
+            }
+
+            @Override public String getName() {
+                return filename;
+            }
+        }));
+        bodyPart.setFileName(filename);
+
+        File spool = File.createTempFile("attachment-", ".part", directory());
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(spool))) {
+            bodyPart.encode(out);
+        } catch (IOException | MessagingException | RuntimeException e) {
+            delete(spool);
+            throw e;
+        }
+        return spool;
+    }
+
+    @Atomic(mode = TxMode.READ)
+    private static InputStream openStream(GenericFile file) {
+        return file.getStream();
+    }
+}
@@ -0,0 +1,141 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The addresses of the {@link EmailBlacklist} as known by one node, so that they are not gathered from every record of the
+ * blacklist whenever they are looked up. It holds the addresses found invalid, and the failure counters by address along
+ * with their weights, ordered so that the addresses above a weight are found without visiting the others. The node updates
+ * it as it logs addresses. Changes made by other nodes, or by pruning, are only noticed through the stamp of the
+ * blacklist, which is read at most once per interval, and have the index rebuilt.
+ *
+ * @param <C> the failure counters
+ */
+final class BlacklistIndex<C> {
+    private final Set<String> invalid = ConcurrentHashMap.newKeySet();
+    private final Map<String, Map<C, Double>> counters = new HashMap<>();
+    private final Map<String, Double> weights = new HashMap<>();
+    private final NavigableMap<Double, Set<String>> ordered = new TreeMap<>();
+    private long stamp, checkedAt;
+    private boolean outdated = false;
+
+    BlacklistIndex(long stamp, long builtAt) {
+        this.stamp = stamp;
+        this.checkedAt = builtAt;
+    }
+
+    /**
+     * @return whether the stamp of the blacklist must be read again to tell whether this index is current
+     */
+    synchronized boolean isDue(long now, long interval) {
+        return now - checkedAt > interval;
+    }
+
+    /**
+     * @return whether this index reflects the blacklist with the given stamp, in which case it is not checked again for
+     *         another interval
+     */
+    synchronized boolean isCurrent(long stamp, long now) {
+        if (outdated || this.stamp != stamp) {
+            return false;
+        }
+        checkedAt = now;
+        return true;
+    }
+
+    /**
+     * Follows a change of the stamp made by this node along with its updates of this index. If the stamp it replaced is
+     * not the one of this index, another node changed the blacklist in between, and the index is outdated.
+     */
+    synchronized void stamped(long replaced, long stamp) {
+        outdated |= replaced != this.stamp;
+        this.stamp = stamp;
+    }
+
+    void invalid(String address) {
+        invalid.add(address);
+    }
+
+    /**
+     * @return a view of the addresses found invalid, which follows the updates of this index
+     */
+    Set<String> getInvalid() {
+        return Collections.unmodifiableSet(invalid);
+    }
+
+    /**
+     * Sets the weight of a failure counter of the given address. The weights of several counters of the same address, as
+     * created concurrently by different nodes, add up.
+     */
+    synchronized void failures(String address, C counter, double weight) {
+        counters.computeIfAbsent(address, key -> new HashMap<>()).put(counter, weight);
+        reorder(address);
+    }
+
+    /**
+     * Drops a failure counter that no longer exists.
+     */
+    synchronized void forget(String address, C counter) {
+        Map<C, Double> counted = counters.get(address);
+        if (counted != null && counted.remove(counter) != null) {
+            if (counted.isEmpty()) {
+                counters.remove(address);
+            }
+            reorder(address);
+        }
+    }
+
+    /**
+     * @return any of the failure counters of the given address, or null if there are none
+     */
+    synchronized C counter(String address) {
+        Map<C, Double> counted = counters.get(address);
+        return counted == null ? null : counted.keySet().iterator().next();
+    }
+
+    /**
+     * @return the weight of the failures of the given address, negative infinity if there are none
+     */
+    synchronized double weight(String address) {
+        return weights.getOrDefault(address, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * @return the addresses whose failures weigh more than the given weight, or as much if inclusive
+     */
+    synchronized Set<String> above(double weight, boolean inclusive) {
+        Set<String> addresses = new HashSet<>();
+        ordered.tailMap(weight, inclusive).values().forEach(addresses::addAll);
+        return addresses;
+    }
+
+    private void reorder(String address) {
+        Double previous = weights.remove(address);
+        if (previous != null) {
+            Set<String> addresses = ordered.get(previous);
+            addresses.remove(address);
+            if (addresses.isEmpty()) {
+                ordered.remove(previous);
+            }
+        }
+        Map<C, Double> counted = counters.get(address);
+        if (counted != null) {
+            double weight = counted.values().stream().reduce(Double.NEGATIVE_INFINITY, BlacklistIndex::sum);
+            weights.put(address, weight);
+            ordered.computeIfAbsent(weight, key -> new HashSet<>()).add(address);
+        }
+    }
+
+    /* Weights are base two logarithms of the counts, so counts add up as such. */
+    private static double sum(double a, double b) {
+        double max = Math.max(a, b);
+        return max == Double.NEGATIVE_INFINITY ? max : max + Math.log1p(Math.pow(2, Math.min(a, b) - max)) / Math.log(2);
+    }
+}
@@ -0,0 +1,31 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import org.joda.time.DateTime;
+
+/**
+ * Times an address was found invalid or failed a delivery within a blacklist segment.
+ */
+public class BlacklistRecord extends BlacklistRecord_Base {
+
+    protected BlacklistRecord(BlacklistSegment segment, String address) {
+        super();
+        setSegment(segment);
+        setAddress(address);
+        setInvalidCount(0);
+        setFailedCount(0);
+    }
+
+    protected void log(boolean invalid, DateTime when) {
+        if (invalid) {
+            setInvalidCount(getInvalidCount() + 1);
+        } else {
+            setFailedCount(getFailedCount() + 1);
+        }
+        setLastLogged(when);
+    }
+
+    protected void delete() {
+        setSegment(null);
+        deleteDomainObject();
+    }
+}
@@ -0,0 +1,25 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import org.joda.time.DateTime;
+
+/**
+ * The blacklist records of one day, so that pruning old records deletes whole segments instead of filtering every record.
+ */
+public class BlacklistSegment extends BlacklistSegment_Base {
+
+    protected BlacklistSegment(EmailBlacklist blacklist, DateTime start) {
+        super();
+        setBlacklist(blacklist);
+        setStart(start);
+    }
+
+    public DateTime getEnd() {
+        return getStart().plusDays(1);
+    }
+
+    protected void delete() {
+        getRecordSet().forEach(BlacklistRecord::delete);
+        setBlacklist(null);
+        deleteDomainObject();
+    }
+}
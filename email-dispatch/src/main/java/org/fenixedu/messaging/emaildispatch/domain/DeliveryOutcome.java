@@ -0,0 +1,81 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.mail.Address;
+
+/**
+ * Result of handing a mime message to the SMTP relay, kept apart from the domain objects so it can be applied to the
+ * report without repeating the network interaction.
+ */
+final class DeliveryOutcome {
+    private int delivered, unrendered = 0;
+    private final Set<String> failed = new HashSet<>();
+    private final Set<Address> unsent = new HashSet<>();
+    private final Set<String> deferred = new HashSet<>();
+
+    DeliveryOutcome(int delivered) {
+        this.delivered = delivered;
+    }
+
+    DeliveryOutcome failed(Collection<? extends Address> addresses) {
+        addresses.stream().map(Address::toString).forEach(failed::add);
+        return this;
+    }
+
+    DeliveryOutcome unsent(Collection<? extends Address> addresses) {
+        unsent.addAll(addresses);
+        return this;
+    }
+
+    /**
+     * Counts a recipient whose message could not be rendered as failed, without blacklisting its address.
+     */
+    DeliveryOutcome unrendered() {
+        unrendered++;
+        return this;
+    }
+
+    /**
+     * Adds destination domains that temporarily refused (4xx) recipients.
+     */
+    DeliveryOutcome deferred(Collection<String> domains) {
+        deferred.addAll(domains);
+        return this;
+    }
+
+    /**
+     * Adds the outcome of another mime message of the same handler to this one.
+     */
+    DeliveryOutcome add(DeliveryOutcome other) {
+        delivered += other.delivered;
+        unrendered += other.unrendered;
+        failed.addAll(other.failed);
+        unsent.addAll(other.unsent);
+        deferred.addAll(other.deferred);
+        return this;
+    }
+
+    Set<String> getDeferred() {
+        return Collections.unmodifiableSet(deferred);
+    }
+
+    int getDelivered() {
+        return delivered;
+    }
+
+    int getUnrendered() {
+        return unrendered;
+    }
+
+    Set<String> getFailed() {
+        return Collections.unmodifiableSet(failed);
+    }
+
+    Set<Address> getUnsent() {
+        return Collections.unmodifiableSet(unsent);
+    }
+}
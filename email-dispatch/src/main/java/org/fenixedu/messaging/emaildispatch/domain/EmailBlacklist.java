@@ -4,21 +4,36 @@ import com.google.common.base.Strings;
 import pt.ist.fenixframework.Atomic;
 import pt.ist.fenixframework.Atomic.TxMode;
 
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.HashMultiset;
-import com.google.common.collect.Multiset;
-import com.google.gson.JsonArray;
+import com.google.common.collect.Sets;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 
+/**
+ * Addresses that were found invalid or failed deliveries, kept as one record per address and day, in daily segments. Logging
+ * addresses only changes their records, and pruning deletes whole segments. Failures are also kept as a decaying counter
+ * per address, see {@link FailureCounter}. The invalid addresses and the counters are looked up in a {@link BlacklistIndex}
+ * kept by each node, which orders the counters by weight so that the addresses failing more than a number of times are
+ * found without counting the records, and which is only rebuilt when the stamp of the blacklist shows that another node
+ * changed it.
+ */
 public class EmailBlacklist extends EmailBlacklist_Base {
     private static final Logger logger = LoggerFactory.getLogger(LocalEmailMessageDispatchReport.class);
 
@@ -26,7 +41,6 @@ public class EmailBlacklist extends EmailBlacklist_Base {
     private static final String EMAIL = "eml";
     private static final String STATUS = "st";
     private static final String STATUS_INVALID = "invalid";
-    private static final String STATUS_FAILED = "failed";
 
     protected EmailBlacklist() {
         super();
@@ -44,64 +58,244 @@ public class EmailBlacklist extends EmailBlacklist_Base {
         return instance != null ? instance : new EmailBlacklist();
     }
 
-    @Override
-    protected JsonArray getBlacklist() {
-        return super.getBlacklist() == null || super.getBlacklist().isJsonNull() ? new JsonArray() : super.getBlacklist()
-                .getAsJsonArray();
-    }
+    /* The segment of the day and the records this node logged in it, so that logging an address does not read every segment
+     * nor every record of the day. Entries are only used once the current transaction finds them in the blacklist, since
+     * objects created by a transaction that is restarted or aborted would never exist. Records logged by other nodes are
+     * not looked up, so an address may have several records on the same day, which add up. */
+    private static final class Day {
+        private final BlacklistSegment segment;
+        private final ConcurrentMap<String, BlacklistRecord> records = new ConcurrentHashMap<>();
 
-    public void addInvalidAddress(String invalid) {
-        if (!Strings.isNullOrEmpty(invalid)) {
-            log(invalid, STATUS_INVALID);
-            logger.warn("Blacklisting email {} because is invalid", invalid);
+        private Day(BlacklistSegment segment) {
+            this.segment = segment;
         }
     }
 
-    public void addFailedAddress(String failed) {
-        if (!Strings.isNullOrEmpty(failed)) {
-            log(failed, STATUS_FAILED);
-            logger.warn("Blacklisting email {} because it failed a deliver", failed);
+    private static volatile Day today = null;
+
+    /* The day, looked up once by each transaction logging addresses, and the index kept up to date with them. */
+    private final class Log {
+        private final DateTime now = new DateTime();
+        private final BlacklistIndex<FailureCounter> index = index();
+        private Day day = null;
+
+        private void log(String email, boolean invalid) {
+            String address = normalize(email);
+            record(address).log(invalid, now);
+            if (invalid) {
+                index.invalid(address);
+            } else {
+                fail(address, 1, now);
+            }
+        }
+
+        private void fail(String address, int failures, DateTime at) {
+            FailureCounter counter = counter(address);
+            counter.record(failures, at);
+            index.failures(address, counter, counter.getWeight());
+        }
+
+        private BlacklistRecord record(String address) {
+            if (day == null) {
+                day = day(now.withTimeAtStartOfDay());
+            }
+            BlacklistRecord record = day.records.get(address);
+            if (record == null || !day.segment.getRecordSet().contains(record)) {
+                record = new BlacklistRecord(day.segment, address);
+                day.records.put(address, record);
+            }
+            return record;
+        }
+
+        /* Counters created by other nodes since the index was built are not known, the new one adds up with them. */
+        private FailureCounter counter(String address) {
+            FailureCounter counter = index.counter(address);
+            if (counter != null && !getFailureCounterSet().contains(counter)) {
+                index.forget(address, counter);
+                counter = null;
+            }
+            return counter != null ? counter : new FailureCounter(EmailBlacklist.this, address);
         }
     }
 
-    public void pruneOldLogs(DateTime before) {
-        JsonArray newBl = new JsonArray();
-        for (JsonElement log : getBlacklist().getAsJsonArray()) {
-            String ts = log.getAsJsonObject().get(TIMESTAMP).getAsString();
-            if (!DateTime.parse(ts).isBefore(before)) {
-                newBl.add(log);
+    private static final long INDEX_INTERVAL = EmailDispatchConfiguration.getConfiguration().mailSenderFailuresIndexTtl();
+    private static volatile BlacklistIndex<FailureCounter> index = null;
+
+    /**
+     * @return the given address as it is kept in the blacklist, which is how addresses must be looked up in the sets
+     *         returned by it
+     */
+    public static String normalize(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Moves the records of the former single JSON array into segments, once.
+     */
+    @Atomic(mode = TxMode.WRITE)
+    public static void migrate() {
+        EmailBlacklist instance = MessagingSystem.getInstance().getBlacklist();
+        if (instance == null || instance.getBlacklist() == null) {
+            return;
+        }
+        if (!instance.getBlacklist().isJsonNull()) {
+            Map<DateTime, BlacklistSegment> segments = new HashMap<>();
+            Map<String, BlacklistRecord> records = new HashMap<>();
+            for (JsonElement log : instance.getBlacklist().getAsJsonArray()) {
+                DateTime when = DateTime.parse(log.getAsJsonObject().get(TIMESTAMP).getAsString());
+                String email = normalize(log.getAsJsonObject().get(EMAIL).getAsString());
+                BlacklistSegment segment = segments.computeIfAbsent(when.withTimeAtStartOfDay(),
+                        start -> new BlacklistSegment(instance, start));
+                records.computeIfAbsent(segment.getExternalId() + email, key -> new BlacklistRecord(segment, email))
+                        .log(STATUS_INVALID.equals(log.getAsJsonObject().get(STATUS).getAsString()), when);
             }
         }
-        setBlacklist(newBl);
+        instance.setBlacklist(null);
+        instance.setStamp(newStamp());
     }
 
-    public Set<String> getInvalidEmails() {
-        Set<String> invalid = new HashSet<>();
-        for (JsonElement log : getBlacklist().getAsJsonArray()) {
-            if (log.getAsJsonObject().get(STATUS).getAsString().equals(STATUS_INVALID)) {
-                invalid.add(log.getAsJsonObject().get(EMAIL).getAsString());
+    /**
+     * Builds the failure counters from the blacklist records, if there are none yet.
+     */
+    @Atomic(mode = TxMode.WRITE)
+    public static void initFailureCounters() {
+        EmailBlacklist instance = MessagingSystem.getInstance().getBlacklist();
+        if (instance == null || !instance.getFailureCounterSet().isEmpty()) {
+            return;
+        }
+        Log log = instance.new Log();
+        instance.getRecords().filter(record -> record.getFailedCount() > 0)
+                .sorted(Comparator.comparing(BlacklistRecord::getLastLogged))
+                .forEach(record -> log.fail(record.getAddress(), record.getFailedCount(), record.getLastLogged()));
+        instance.stamp(log.index);
+    }
+
+    public void addInvalidAddress(String invalid) {
+        addAddresses(Collections.singleton(invalid), Collections.emptySet());
+    }
+
+    public void addFailedAddress(String failed) {
+        addAddresses(Collections.emptySet(), Collections.singleton(failed));
+    }
+
+    /**
+     * Logs several addresses at once, looking up the records of the day and the failure counters only once for all of
+     * them. Must run in a write transaction.
+     */
+    public void addAddresses(Collection<String> invalid, Collection<String> failed) {
+        if (invalid.isEmpty() && failed.isEmpty()) {
+            return;
+        }
+        Log log = new Log();
+        for (String address : invalid) {
+            if (!Strings.isNullOrEmpty(address)) {
+                log.log(address, true);
+                logger.warn("Blacklisting email {} because is invalid", address);
+            }
+        }
+        for (String address : failed) {
+            if (!Strings.isNullOrEmpty(address)) {
+                log.log(address, false);
+                logger.warn("Blacklisting email {} because it failed a deliver", address);
             }
         }
-        return invalid;
+        stamp(log.index);
     }
 
+    public void pruneOldLogs(DateTime before) {
+        getSegmentSet().stream().filter(segment -> !segment.getEnd().isAfter(before)).collect(Collectors.toList())
+                .forEach(BlacklistSegment::delete);
+        getFailureCounterSet().stream().filter(counter -> counter.getLastFailure().isBefore(before))
+                .collect(Collectors.toList()).forEach(FailureCounter::delete);
+        // the index of every node keeps the pruned addresses until it is rebuilt
+        setStamp(newStamp());
+    }
+
+    /**
+     * @return a view of the addresses found invalid, which follows those logged by this node
+     */
+    public Set<String> getInvalidEmails() {
+        return index().getInvalid();
+    }
+
+    /**
+     * @return the addresses whose decayed count of failed deliveries is above the given number
+     */
     public Set<String> getFailedEmails(int times) {
-        Multiset<String> failed = HashMultiset.create();
-        for (JsonElement log : getBlacklist().getAsJsonArray()) {
-            if (log.getAsJsonObject().get(STATUS).getAsString().equals(STATUS_FAILED)) {
-                failed.add(log.getAsJsonObject().get(EMAIL).getAsString());
+        return index().above(FailureCounter.weight(times, new DateTime()), false);
+    }
+
+    /**
+     * @return the addresses whose decayed count of failed deliveries is at least the given number
+     */
+    public Set<String> getFailingEmails(double failures) {
+        return index().above(FailureCounter.weight(failures, new DateTime()), true);
+    }
+
+    /**
+     * @return the decayed count of failed deliveries of the given address
+     */
+    public double getFailures(String email) {
+        return FailureCounter.failures(index().weight(normalize(email)), new DateTime());
+    }
+
+    /**
+     * @param invalid whether invalid addresses are suppressed
+     * @param failures decayed count of failures from which an address is suppressed, or zero to never suppress failed
+     *            addresses
+     * @return a view of the addresses to skip when delivering messages
+     */
+    public Set<String> getSuppressedEmails(boolean invalid, int failures) {
+        Set<String> suppressed = invalid ? getInvalidEmails() : Collections.emptySet();
+        return failures > 0 ? Sets.union(suppressed, getFailingEmails(failures)) : suppressed;
+    }
+
+    private Stream<BlacklistRecord> getRecords() {
+        return getSegmentSet().stream().flatMap(segment -> segment.getRecordSet().stream());
+    }
+
+    /* Stamps are random instead of counters, so that pruning writes them without reading them. */
+    private static long newStamp() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+    private void stamp(BlacklistIndex<FailureCounter> index) {
+        long stamp = newStamp();
+        index.stamped(getStamp(), stamp);
+        setStamp(stamp);
+    }
+
+    /* The segments are only read when this node does not know the one of the day yet, once per day. */
+    private Day day(DateTime start) {
+        Day day = today;
+        if (day != null && day.segment.getStart().equals(start) && getSegmentSet().contains(day.segment)) {
+            return day;
+        }
+        BlacklistSegment segment = getSegmentSet().stream().filter(s -> s.getStart().equals(start)).findAny()
+                .orElseGet(() -> new BlacklistSegment(this, start));
+        return today = new Day(segment);
+    }
+
+    /* The stamp is only read once the index was not checked for an interval, so that transactions looking addresses up do
+     * not otherwise read the blacklist, nor conflict with those logging addresses. */
+    private BlacklistIndex<FailureCounter> index() {
+        BlacklistIndex<FailureCounter> current = index;
+        long now = System.currentTimeMillis();
+        if (current == null || current.isDue(now, INDEX_INTERVAL) && !current.isCurrent(getStamp(), now)) {
+            synchronized (EmailBlacklist.class) {
+                current = index;
+                if (current == null || current.isDue(now, INDEX_INTERVAL) && !current.isCurrent(getStamp(), now)) {
+                    current = index = buildIndex(now);
+                }
             }
         }
-        return failed.stream().filter(email -> failed.count(email) > times).collect(Collectors.toSet());
+        return current;
     }
 
-    private void log(String email, String status) {
-        JsonObject log = new JsonObject();
-        log.addProperty(TIMESTAMP, new DateTime().toString());
-        log.addProperty(EMAIL, email);
-        log.addProperty(STATUS, status);
-        JsonArray bl = getBlacklist();
-        bl.add(log);
-        setBlacklist(bl);
+    private BlacklistIndex<FailureCounter> buildIndex(long now) {
+        BlacklistIndex<FailureCounter> index = new BlacklistIndex<>(getStamp(), now);
+        getRecords().filter(record -> record.getInvalidCount() > 0).forEach(record -> index.invalid(record.getAddress()));
+        getFailureCounterSet().forEach(counter -> index.failures(counter.getAddress(), counter, counter.getWeight()));
+        return index;
     }
 }
@@ -0,0 +1,56 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Failed deliveries of an address, decaying by half every configured half life. The count is stored as a weight, its base
+ * two logarithm plus the half lives elapsed since a fixed epoch, which does not change as the count decays. Counters
+ * therefore compare by weight regardless of when they were last updated, and a threshold on the current count is a
+ * threshold on the weight, see {@link #weight(double, DateTime)}.
+ */
+public class FailureCounter extends FailureCounter_Base {
+    private static final long EPOCH = new DateTime(2020, 1, 1, 0, 0, DateTimeZone.UTC).getMillis();
+    private static final double HALF_LIFE =
+            EmailDispatchConfiguration.getConfiguration().mailSenderFailuresHalfLife() * 24 * 3600 * 1000.0;
+
+    protected FailureCounter(EmailBlacklist blacklist, String address) {
+        super();
+        setBlacklist(blacklist);
+        setAddress(address);
+        setWeight(Double.NEGATIVE_INFINITY);
+    }
+
+    private static double halfLives(DateTime at) {
+        return (at.getMillis() - EPOCH) / HALF_LIFE;
+    }
+
+    /**
+     * @return the weight of a counter with the given number of failures at the given time
+     */
+    public static double weight(double failures, DateTime at) {
+        return Math.log(failures) / Math.log(2) + halfLives(at);
+    }
+
+    /**
+     * @return the number of failures of a counter with the given weight at the given time
+     */
+    public static double failures(double weight, DateTime at) {
+        return Math.pow(2, weight - halfLives(at));
+    }
+
+    public double getFailures(DateTime at) {
+        return failures(getWeight(), at);
+    }
+
+    protected void record(int failures, DateTime at) {
+        setWeight(weight(getFailures(at) + failures, at));
+        setLastFailure(at);
+    }
+
+    protected void delete() {
+        setBlacklist(null);
+        deleteDomainObject();
+    }
+}
@@ -1,39 +1,27 @@
 package org.fenixedu.messaging.emaildispatch.domain;
 
-import org.fenixedu.messaging.core.domain.Sender;
 import pt.ist.fenixframework.Atomic;
 import pt.ist.fenixframework.Atomic.TxMode;
+import pt.ist.fenixframework.FenixFramework;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Locale;
-import java.util.Map;
-import java.util.Objects;
-import java.util.Set;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-
-import javax.mail.MessagingException;
-
-import org.fenixedu.bennu.core.domain.User;
-import org.fenixedu.bennu.core.domain.UserProfile;
-import org.fenixedu.bennu.core.groups.Group;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
 import org.fenixedu.messaging.core.domain.Message;
 import org.fenixedu.messaging.core.domain.MessagingSystem;
 import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+import org.fenixedu.messaging.emaildispatch.delivery.BlacklistBuffer;
+import org.fenixedu.messaging.emaildispatch.delivery.DeliveryEngine;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.Maps;
-
 public class LocalEmailMessageDispatchReport extends LocalEmailMessageDispatchReport_Base {
     private static final Logger logger = LoggerFactory.getLogger(LocalEmailMessageDispatchReport.class);
-    private static final boolean RECIPIENTS_AS_BCCS = EmailDispatchConfiguration.getConfiguration().recipientsAsBccs();
+    private static final int PLANNING_CHUNK = EmailDispatchConfiguration.getConfiguration().mailSenderPlanningChunk();
 
     public LocalEmailMessageDispatchReport(Collection<MimeMessageHandler> handlers, Integer validCount, Integer invalidCount) {
         super();
@@ -42,134 +30,118 @@ public class LocalEmailMessageDispatchReport extends LocalEmailMessageDispatchRe
         setDeliveredCount(0);
         setFailedCount(0);
         setInvalidCount(invalidCount);
+        setSuppressedCount(0);
         setQueue(MessagingSystem.getInstance());
     }
 
     @Override
     public boolean isFinished() {
-        return getHandlerSet().isEmpty();
+        return !isPlanning() && getHandlerSet().isEmpty();
     }
 
-    public void deliver() {
-        if (!isFinished()) {
-            for (MimeMessageHandler handler : getHandlerSet()) {
-                try {
-                    handler.deliver();
-                } catch (MessagingException e) {
-                    logger.error("Error sending message " + getMessage().getExternalId(), e);
-                }
+    /**
+     * @return whether recipients of this report are still to be resolved into mime message handlers
+     */
+    public boolean isPlanning() {
+        return getPlanningCursor() != null;
+    }
+
+    /**
+     * Resolves the remaining recipients of this report into mime message handlers, one bounded transaction per chunk,
+     * handing the handlers of each chunk to the given consumer as soon as they are committed. Planning resumes from the
+     * persisted cursor, so it may be interrupted at any point and continued by this or another node.
+     */
+    public void plan(Consumer<Collection<MimeMessageHandler>> planned) {
+        RecipientPlanner planner = planner();
+        while (planner != null) {
+            RecipientPlanner.Chunk chunk = planChunk(planner);
+            if (chunk == null) {
+                return;
             }
-            if (isFinished()) {
-                if (!super.isFinished()) {
-                    logger.error("Numbers are not right for message {} : total {} delivered {} invalid {} failed {}", getMessage().getExternalId(), getTotalCount(),
-                            getDeliveredCount(), getInvalidCount(), getFailedCount());
-                }
-                finishUpDelivery();
+            planner.commit(chunk);
+            chunk.getInvalids().forEach(BlacklistBuffer::addInvalidAddress);
+            planned.accept(chunk.getHandlers());
+            if (chunk.isLast()) {
+                RecipientPlanner.discard(this);
+                return;
             }
-        } else if (getQueue() != null) {
-            finishUpDelivery();
         }
     }
 
-    @Atomic(mode = TxMode.WRITE)
-    private void finishUpDelivery() {
-        setFinishedDelivery(new DateTime());
-        setQueue(null);
+    @Atomic(mode = TxMode.READ)
+    private RecipientPlanner planner() {
+        return isPlanning() ? RecipientPlanner.of(this) : null;
     }
 
-    public static LocalEmailMessageDispatchReport dispatch(Message message) {
-        List<String> invalids = new ArrayList<>();
-        EmailBlacklist blacklist = EmailBlacklist.getInstance();
-        Predicate<String> validator = email -> {
-            boolean valid = MessagingSystem.Util.isValidEmail(email);
-            if (!valid) {
-                invalids.add(email);
-            }
-            return valid;
-        };
-
-        Set<UserProfile> tos = getProfilesAllowed(message.getSender(), message.getToGroups());
-        Set<UserProfile> ccs = getProfilesAllowed(message.getSender(), message.getCcGroups());
-        Set<UserProfile> bccs = getProfilesAllowed(message.getSender(), message.getBccGroups());
-        Collection<MimeMessageHandler> handlers;
-        int valids;
-
-        Map<Locale, Set<String>> tosByLocale, ccsByLocale, bccsByLocale;
-        Locale defLocale = message.getPreferredLocale();
-        Set<Locale> messageLocales = message.getContentLocales();
-
-        if (RECIPIENTS_AS_BCCS) {
-            bccs.addAll(tos);
-            bccs.addAll(ccs);
-
-            tosByLocale = Maps.newHashMap();
-            ccsByLocale = Maps.newHashMap();
-            bccsByLocale = emailsByMessageLocale(bccs, validator, defLocale, messageLocales);
+    @Atomic(mode = TxMode.WRITE)
+    private RecipientPlanner.Chunk planChunk(RecipientPlanner planner) {
+        String cursor = getPlanningCursor();
+        if (cursor == null) {
+            // finished by another node
+            RecipientPlanner.discard(this);
+            return null;
+        }
+        RecipientPlanner.Chunk chunk = planner.plan(cursor, PLANNING_CHUNK, this::addHandler);
+        setPlanningCursor(chunk.isLast() ? null : chunk.getEnd());
+        setTotalCount(getTotalCount() + chunk.getValidCount() + chunk.getInvalids().size());
+        setInvalidCount(getInvalidCount() + chunk.getInvalids().size());
+        // suppressed recipients are never attempted, so they are kept out of the total
+        setSuppressedCount(getSuppressedCount() + chunk.getSuppressedCount());
+        return chunk;
+    }
 
-            Set<String> singleTos = message.getSingleTosSet().stream().filter(validator).collect(Collectors.toSet());
-            bccsByLocale.computeIfAbsent(message.getPreferredLocale(), k -> new HashSet<>()).addAll(singleTos);
+    /**
+     * Delivers the handlers of this report seen by the current transaction and waits for them. The report is not finished
+     * here, as the deliveries are committed by transactions of their own, see {@link #finishIfDone(Collection)}.
+     */
+    public void deliver() {
+        if (!isFinished()) {
+            DeliveryEngine.getInstance().deliver(new ArrayList<>(getHandlerSet()));
+        }
+    }
 
-            Set<String> singleBccs = message.getSingleBccsSet().stream().filter(validator).collect(Collectors.toSet());
-            bccsByLocale.computeIfAbsent(message.getPreferredLocale(), k -> new HashSet<>()).addAll(singleBccs);
+    /**
+     * Finishes the given reports that have no handlers left. Delivered handlers are deleted by the transactions of the
+     * delivery workers, which a transaction started before the delivery never sees, so when called from within one the
+     * reports are checked from a thread of their own, each in a new transaction.
+     */
+    public static void finishIfDone(Collection<LocalEmailMessageDispatchReport> reports) {
+        if (FenixFramework.getTransaction() == null) {
+            reports.forEach(LocalEmailMessageDispatchReport::finishIfDone);
         } else {
-            //XXX force disjoint recipient lists - priority order: tos > ccs > bccs > single bccs
-            ccs.removeAll(tos);
-            bccs.removeAll(tos);
-            bccs.removeAll(ccs);
-
-            Set<String> singleTos = message.getSingleTosSet();
-            tos.stream().map(UserProfile::getEmail).forEach(singleTos::remove);
-            ccs.stream().map(UserProfile::getEmail).forEach(singleTos::remove);
-            bccs.stream().map(UserProfile::getEmail).forEach(singleTos::remove);
-
-            Set<String> singleBccs = message.getSingleBccsSet();
-            tos.stream().map(UserProfile::getEmail).forEach(singleBccs::remove);
-            ccs.stream().map(UserProfile::getEmail).forEach(singleBccs::remove);
-            bccs.stream().map(UserProfile::getEmail).forEach(singleBccs::remove);
-
-            tosByLocale = emailsByMessageLocale(tos, validator, defLocale, messageLocales);
-            ccsByLocale = emailsByMessageLocale(ccs, validator, defLocale, messageLocales);
-            bccsByLocale = emailsByMessageLocale(bccs, validator, defLocale, messageLocales);
-
-            singleTos = singleTos.stream().filter(validator).collect(Collectors.toSet());
-            tosByLocale.computeIfAbsent(message.getPreferredLocale(), k -> new HashSet<>()).addAll(singleTos);
-
-            singleBccs = singleBccs.stream().filter(validator).collect(Collectors.toSet());
-            bccsByLocale.computeIfAbsent(message.getPreferredLocale(), k -> new HashSet<>()).addAll(singleBccs);
+            CompletableFuture.runAsync(() -> reports.forEach(LocalEmailMessageDispatchReport::finishIfDone)).join();
         }
-
-        handlers = MimeMessageHandler.create(tosByLocale, ccsByLocale, bccsByLocale);
-        valids = Stream.of(tosByLocale, ccsByLocale, bccsByLocale).flatMap(m -> m.values().stream()).mapToInt(Collection::size)
-                .sum();
-
-        invalids.forEach(blacklist::addInvalidAddress);
-
-        return new LocalEmailMessageDispatchReport(handlers, valids, invalids.size());
     }
 
-    private static Map<Locale, Set<String>> emailsByMessageLocale(Set<UserProfile> users, Predicate<String> emailValidator,
-            Locale defLocale, Set<Locale> messageLocales) {
-        Map<Locale, Set<String>> emails = new HashMap<>();
-        users.stream().filter(p -> emailValidator.test(p.getEmail())).forEach(p -> {
-            Locale locale = p.getPreferredLocale();
-            if (locale == null || !messageLocales.contains(locale)) {
-                locale = defLocale;
+    @Atomic(mode = TxMode.READ)
+    private void finishIfDone() {
+        if (isFinished() && getQueue() != null) {
+            if (!super.isFinished()) {
+                logger.error("Numbers are not right for message {} : total {} delivered {} invalid {} failed {}", getMessage().getExternalId(), getTotalCount(),
+                        getDeliveredCount(), getInvalidCount(), getFailedCount());
             }
-            emails.computeIfAbsent(locale, k -> new HashSet<>()).add(p.getEmail());
-        });
-        return emails;
+            finishUpDelivery();
+        }
     }
 
-    private static Set<UserProfile> getProfilesAllowed(Sender sender, Set<Group> groups) {
-        return groups.stream().flatMap(Group::getMembers)
-                .filter(MessagingSystem.getInstance()::isOptedIn)
-                .filter(user -> !sender.getOptInRequired() || sender.getOptedInUsers().contains(user))
-                .map(User::getProfile).filter(Objects::nonNull)
-                .collect(Collectors.toSet());
+    @Atomic(mode = TxMode.WRITE)
+    private void finishUpDelivery() {
+        setFinishedDelivery(new DateTime());
+        setQueue(null);
+        MimeBodyCache.evict(getMessage());
+    }
+
+    /* Recipients are only resolved after the message is dispatched, see plan, so that dispatching is a small transaction
+     * regardless of the size of the message. */
+    public static LocalEmailMessageDispatchReport dispatch(Message message) {
+        LocalEmailMessageDispatchReport report = new LocalEmailMessageDispatchReport(Collections.emptySet(), 0, 0);
+        report.setPlanningCursor(RecipientPlanner.START);
+        return report;
     }
 
     @Override
     public void delete() {
+        RecipientPlanner.discard(this);
         setQueue(null);
         getHandlerSet().forEach(MimeMessageHandler::delete);
         super.delete();
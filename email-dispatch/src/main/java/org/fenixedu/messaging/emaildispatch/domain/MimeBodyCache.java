@@ -0,0 +1,105 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+
+import javax.mail.MessagingException;
+import javax.mail.util.SharedFileInputStream;
+
+import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Encoded mime messages, without recipients nor message id, for each message and locale being delivered. Messages are
+ * spooled to disk and read back through {@link SharedFileInputStream}, so handlers stream them to the relay without
+ * holding them in memory. Entries are evicted when the delivery of their message finishes or when the spool grows
+ * beyond its configured size.
+ */
+final class MimeBodyCache {
+
+    interface Renderer {
+        void render(OutputStream out) throws MessagingException, IOException;
+    }
+
+    private static final class Key {
+        private final String message;
+        private final Locale locale;
+
+        private Key(String message, Locale locale) {
+            this.message = message;
+            this.locale = locale;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return message.equals(key.message) && Objects.equals(locale, key.locale);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(message, locale);
+        }
+    }
+
+    private static final RemovalListener<Key, File> DELETE_FILE = notification -> AttachmentSpool.delete(notification.getValue());
+
+    private static final Cache<Key, File> cache = CacheBuilder.newBuilder()
+            .maximumWeight(EmailDispatchConfiguration.getConfiguration().mailSenderSpoolSize() * 1024L * 1024L)
+            .weigher((Key key, File file) -> (int) Math.min(Integer.MAX_VALUE, file.length()))
+            .removalListener(DELETE_FILE).build();
+
+    private MimeBodyCache() {
+    }
+
+    /**
+     * Opens the rendered message for the given locale, rendering it first if needed. The returned stream must be closed
+     * once the message built from it has been sent.
+     */
+    static SharedFileInputStream open(Message message, Locale locale, Renderer renderer) throws MessagingException {
+        try {
+            return new SharedFileInputStream(cache.get(new Key(message.getExternalId(), locale), () -> spool(renderer)));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof MessagingException) {
+                throw (MessagingException) e.getCause();
+            }
+            throw new MessagingException("Error rendering mime message body", e.getCause());
+        } catch (IOException e) {
+            throw new MessagingException("Error reading spooled mime message body", e);
+        }
+    }
+
+    static void evict(Message message) {
+        final String id = message.getExternalId();
+        cache.asMap().keySet().removeIf(key -> key.message.equals(id));
+        AttachmentSpool.evict(message);
+    }
+
+    private static File spool(Renderer renderer) throws MessagingException, IOException {
+        File spool = File.createTempFile("message-", ".eml", AttachmentSpool.directory());
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(spool))) {
+            renderer.render(out);
+        } catch (IOException | MessagingException | RuntimeException e) {
+            AttachmentSpool.delete(spool);
+            throw e;
+        }
+        return spool;
+    }
+}
@@ -1,47 +1,59 @@
 package org.fenixedu.messaging.emaildispatch.domain;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import javax.activation.DataHandler;
-import javax.activation.DataSource;
 import javax.mail.Address;
 import javax.mail.BodyPart;
 import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
 import javax.mail.SendFailedException;
 import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.util.SharedFileInputStream;
 
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
 import com.google.common.collect.Sets;
 import com.sun.mail.smtp.SMTPAddressFailedException;
 import org.fenixedu.bennu.io.domain.GenericFile;
 import org.fenixedu.commons.i18n.LocalizedString;
 import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.core.domain.MessagePriority;
 import org.fenixedu.messaging.core.domain.MessagingSystem;
 import org.fenixedu.messaging.core.domain.Sender;
 import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
 import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration.ConfigurationProperties;
+import org.fenixedu.messaging.emaildispatch.delivery.BlacklistBuffer;
+import org.fenixedu.messaging.emaildispatch.delivery.DomainThrottle;
+import org.fenixedu.messaging.emaildispatch.delivery.LeasePolicy;
+import org.fenixedu.messaging.emaildispatch.delivery.RetryIndex;
+import org.fenixedu.messaging.emaildispatch.delivery.RetryPolicy;
+import org.fenixedu.messaging.emaildispatch.delivery.SmtpTransportPool;
 import org.joda.time.DateTime;
 
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
-import com.google.common.collect.Lists;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,12 +61,27 @@ import pt.ist.fenixframework.Atomic;
 import pt.ist.fenixframework.Atomic.TxMode;
 
 public final class MimeMessageHandler extends MimeMessageHandler_Base {
-    private static final int MAX_RECIPIENTS = EmailDispatchConfiguration.getConfiguration().mailSenderMaxRecipients();
     private static final String MIME_MESSAGE_ID_SUFFIX = EmailDispatchConfiguration.getConfiguration().mailMimeMessageIdSuffix();
+    private static final Map<String, String> MX_HOSTS = mxHosts(EmailDispatchConfiguration.getConfiguration().mailSenderBatchingMxHosts());
 
     private static final Logger logger = LoggerFactory.getLogger(MimeMessageHandler.class);
 
+    /* The outcome of a message that was sent is recorded with a few retries instead of retrying the delivery. */
+    private static final int RECORD_ATTEMPTS = 5;
+    private static final long RECORD_BACKOFF = 200;
+
     private static Session SESSION = null;
+    private static SmtpTransportPool TRANSPORT_POOL = null;
+
+    private static Map<String, String> mxHosts(String hosts) {
+        if (Strings.isNullOrEmpty(hosts)) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> mx = new HashMap<>();
+        Splitter.on(',').trimResults().omitEmptyStrings().withKeyValueSeparator('=').split(hosts)
+                .forEach((domain, host) -> mx.put(domain.toLowerCase(Locale.ROOT), host.trim().toLowerCase(Locale.ROOT)));
+        return mx;
+    }
 
     private static synchronized Session session() {
         final Properties properties = new Properties();
@@ -67,6 +94,20 @@ public final class MimeMessageHandler extends MimeMessageHandler_Base {
         return SESSION;
     }
 
+    private static synchronized SmtpTransportPool transportPool() {
+        if (TRANSPORT_POOL == null) {
+            TRANSPORT_POOL = new SmtpTransportPool(session());
+        }
+        return TRANSPORT_POOL;
+    }
+
+    public static synchronized void shutdownTransportPool() {
+        if (TRANSPORT_POOL != null) {
+            TRANSPORT_POOL.shutdown();
+            TRANSPORT_POOL = null;
+        }
+    }
+
     protected MimeMessageHandler(Locale locale, Collection<String> tos, Collection<String> ccs, Collection<String> bccs) {
         super();
         setLocale(locale);
@@ -81,8 +122,7 @@ public final class MimeMessageHandler extends MimeMessageHandler_Base {
         }
     }
 
-    private InternetAddress getFrom() throws MessagingException {
-        final Sender sender = getReport().getMessage().getSender();
+    private static InternetAddress getFrom(Sender sender) throws MessagingException {
         final String name = sender.getName();
         final String address = sender.getAddress();
         try {
@@ -92,32 +132,64 @@ public final class MimeMessageHandler extends MimeMessageHandler_Base {
         }
     }
 
-    protected MimeMessage mimeMessage() throws MessagingException {
+    protected SpooledMimeMessage mimeMessage() throws MessagingException {
         final Message message = getReport().getMessage();
         final Locale locale = getLocale();
-        final String[] languages = {locale.toLanguageTag()};
-        MimeMessage mimeMessage = new MimeMessage(session()) {
-            private String fenixMessageId = null;
+        // every handler of a message and locale shares the same content, only recipients and message id differ
+        final SharedFileInputStream body = MimeBodyCache.open(message, locale, out -> render(message, locale, out));
+        SpooledMimeMessage mimeMessage = null;
+        try {
+            mimeMessage = new SpooledMimeMessage(session(), body);
+            mimeMessage.setHeader("Message-ID", getExternalId() + "." + new DateTime().getMillis() + "@" + MIME_MESSAGE_ID_SUFFIX);
 
-            @Override
-            public String getMessageID() throws MessagingException {
-                if (fenixMessageId == null) {
-                    fenixMessageId = getExternalId() + "." + new DateTime().getMillis() + "@" + MIME_MESSAGE_ID_SUFFIX;
-                }
-                return fenixMessageId;
+            String addresses = getToAddresses();
+            if (addresses != null) {
+                mimeMessage.addRecipients(RecipientType.TO, addresses);
+            }
+            addresses = getCcAddresses();
+            if (addresses != null) {
+                mimeMessage.addRecipients(RecipientType.CC, addresses);
             }
+            addresses = getBccAddresses();
+            if (addresses != null) {
+                mimeMessage.addRecipients(RecipientType.BCC, addresses);
+            }
+            return mimeMessage;
+        } catch (MessagingException | RuntimeException e) {
+            closeQuietly(body);
+            throw e;
+        }
+    }
 
+    private static void render(Message message, Locale locale, OutputStream out) throws MessagingException, IOException {
+        final List<SharedFileInputStream> attachments = new ArrayList<>();
+        try {
+            MimeMessage mimeMessage = compose(message, locale, getContent(message.getSubject(), locale),
+                    getContent(message.getTextBody(), locale), getContent(message.getHtmlBody(), locale), attachments);
+            mimeMessage.saveChanges();
+            mimeMessage.writeTo(out);
+        } finally {
+            attachments.forEach(MimeMessageHandler::closeQuietly);
+        }
+    }
+
+    /* Builds the mime message of a message, without recipients nor message id. The spooled attachments it reads from are
+     * added to the given list, and must be kept open until the message is written or sent. */
+    private static MimeMessage compose(Message message, Locale locale, String subject, String textBody, String htmlBody,
+            List<SharedFileInputStream> attachments) throws MessagingException {
+        final String[] languages = {locale.toLanguageTag()};
+        final Date created = message.getCreated().toDate();
+        MimeMessage mimeMessage = new MimeMessage(session()) {
             @Override
             protected void updateMessageID() throws MessagingException {
-                setHeader("Message-ID", getMessageID());
-                setSentDate(message.getCreated().toDate());
+                // Message-ID is set for each handler
+                setSentDate(created);
             }
-
         };
 
-        mimeMessage.setFrom(getFrom());
+        mimeMessage.setFrom(getFrom(message.getSender()));
         mimeMessage.setContentLanguage(languages);
-        mimeMessage.setSubject(getContent(message.getSubject(), locale));
+        mimeMessage.setSubject(subject);
 
         final String replyTo = message.getReplyTo();
         if (!Strings.isNullOrEmpty(replyTo)) {
@@ -133,14 +205,12 @@ public final class MimeMessageHandler extends MimeMessageHandler_Base {
         final MimeMultipart htmlAndTextMultipart = new MimeMultipart("alternative");
 
         // Should be ordered "plainest to richest" (first: text/plain | second: text/html) to display properly in email clients
-        final String textBody = getContent(message.getTextBody(), locale);
         if (!Strings.isNullOrEmpty(textBody)) {
             final BodyPart bodyPart = new MimeBodyPart();
             bodyPart.setContent(textBody, "text/plain; charset=utf-8");
             htmlAndTextMultipart.addBodyPart(bodyPart);
         }
 
-        final String htmlBody = getContent(message.getHtmlBody(), locale);
         if (!Strings.isNullOrEmpty(htmlBody)) {
             final BodyPart bodyPart = new MimeBodyPart();
             bodyPart.setContent(htmlBody, "text/html; charset=utf-8");
@@ -152,46 +222,76 @@ public final class MimeMessageHandler extends MimeMessageHandler_Base {
         htmlAndTextBodypart.setContent(htmlAndTextMultipart);
         mimeMultipart.addBodyPart(htmlAndTextBodypart);
 
+        // Attachments are copied from their spooled, already encoded, parts
         for (final GenericFile file : message.getFileSet()) {
-            final MimeBodyPart bodyPart = new MimeBodyPart();
-            bodyPart.setDataHandler(new DataHandler(new DataSource() {
-                @Override public InputStream getInputStream() {
-                    return file.getStream();
-                }
+            final SharedFileInputStream attachment = AttachmentSpool.open(file);
+            attachments.add(attachment);
+            mimeMultipart.addBodyPart(new MimeBodyPart(attachment));
+        }
 
-                @Override public OutputStream getOutputStream() {
-                    throw new UnsupportedOperationException();
-                }
+        mimeMessage.setContent(mimeMultipart);
+        return mimeMessage;
+    }
 
-                @Override public String getContentType() {
-                    return file.getContentType();
-                }
+    private static final class Recipient {
+        private final RecipientType type;
+        private final String address;
 
-                @Override public String getName() {
-                    return file.getFilename();
-                }
-            }));
-            bodyPart.setFileName(file.getFilename());
-            mimeMultipart.addBodyPart(bodyPart);
+        private Recipient(RecipientType type, String address) {
+            this.type = type;
+            this.address = address;
         }
+    }
 
-        mimeMessage.setContent(mimeMultipart);
-
-        String addresses = getToAddresses();
-        if (addresses != null) {
-            mimeMessage.addRecipients(RecipientType.TO, addresses);
+    /* The recipients of this handler, if its message is personalized and it was not delivered by a concurrent run. */
+    @Atomic(mode = TxMode.READ)
+    private List<Recipient> personalizedRecipients() {
+        LocalEmailMessageDispatchReport report = getReport();
+        if (report == null || !report.getMessage().isPersonalized()) {
+            return null;
         }
-        addresses = getCcAddresses();
-        if (addresses != null) {
-            mimeMessage.addRecipients(RecipientType.CC, addresses);
+        // a server without the provider fails the attempt as a whole, instead of leaving every recipient unrendered
+        report.getMessage().getRecipientParameters();
+        List<Recipient> recipients = new ArrayList<>();
+        for (RecipientType type : new RecipientType[] { RecipientType.TO, RecipientType.CC, RecipientType.BCC }) {
+            String addresses = type == RecipientType.TO ? getToAddresses() : type == RecipientType.CC ? getCcAddresses()
+                    : getBccAddresses();
+            MessagingSystem.Util.toEmailSet(addresses).forEach(address -> recipients.add(new Recipient(type, address)));
         }
-        addresses = getBccAddresses();
-        if (addresses != null) {
-            mimeMessage.addRecipients(RecipientType.BCC, addresses);
+        return recipients;
+    }
+
+    /* Renders the message for a single recipient into its own mime message, or returns null if this handler was delivered
+     * by a concurrent run. Templates are only compiled once per server, so only this recipient's rendering is held. The
+     * spooled attachments it reads from are added to the given list, and must be kept open until the message is sent. */
+    @Atomic(mode = TxMode.READ)
+    private MimeMessage personalize(Recipient recipient, int index, List<SharedFileInputStream> attachments)
+            throws MessagingException, IOException {
+        LocalEmailMessageDispatchReport report = getReport();
+        if (report == null) {
+            return null;
         }
+        final Message message = report.getMessage();
+        final Locale locale = getLocale();
+        Map<String, Object> parameters = message.getRecipientParameters(recipient.address);
+        StringWriter subject = new StringWriter(), textBody = new StringWriter(), htmlBody = new StringWriter();
+        message.render(parameters, locale, subject, textBody, htmlBody);
+        MimeMessage mimeMessage =
+                compose(message, locale, subject.toString(), textBody.toString(), htmlBody.toString(), attachments);
+        mimeMessage.setHeader("Message-ID",
+                getExternalId() + "." + index + "." + new DateTime().getMillis() + "@" + MIME_MESSAGE_ID_SUFFIX);
+        mimeMessage.addRecipients(recipient.type, recipient.address);
         return mimeMessage;
     }
 
+    private static void closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            logger.debug("Error closing spooled stream", e);
+        }
+    }
+
     private static String getContent(LocalizedString ls, Locale l) {
         if (ls != null) {
             String s = ls.getContent(l);
@@ -203,106 +303,267 @@ public final class MimeMessageHandler extends MimeMessageHandler_Base {
         return null;
     }
 
-    public static Collection<MimeMessageHandler> create(Map<Locale, Set<String>> tos, Map<Locale, Set<String>> ccs,
-                                                        Map<Locale, Set<String>> bccs) {
-        return Stream.of(tos, ccs, bccs).flatMap(m -> m.keySet().stream()).distinct()
-                .flatMap(locale -> bestEffortCreate(locale, tos.get(locale), ccs.get(locale), bccs.get(locale)).stream())
-                .collect(Collectors.toSet());
-    }
-
-    /*XXX Best effort minimizes number of mime messages using a moving window. This approach also allows to group Tos and Ccs so
-     * that, in the most common case where there is an overflow of Bccs, at least the Tos and Ccs will be visible to each other.
-     * Note however that this intent is somewhat wasted when there are multiple preferred locales among Tos and Ccs due to the
-     * locale separation */
-    private static Collection<MimeMessageHandler> bestEffortCreate(Locale locale, Collection<String> tos, Collection<String> ccs,
-                                                                   Collection<String> bccs) {
-        Collection<MimeMessageHandler> handlers = new ArrayList<>();
-        List<String> all =
-                Stream.of(tos, ccs, bccs).filter(Objects::nonNull).flatMap(Collection::stream).collect(Collectors.toList());
-        List<String> partial;
-        List<List<String>> split = Lists.partition(all, MAX_RECIPIENTS);
-        MimeMessageHandler handler;
-
-        int nHandlers = split.size(), nRecipients = all.size(), nTos = tos != null ? tos.size() : 0,
-                nCcs = ccs != null ? ccs.size() : 0, nVisible = nTos + nCcs;
-        int ccStart, bccStart;
-        int mixedTos = nTos % MAX_RECIPIENTS, mixedVisible = nVisible % MAX_RECIPIENTS;
-        if (nTos == nRecipients && mixedTos != 0) {
-            ccStart = bccStart = nHandlers;
-        } else if (nVisible == nRecipients && mixedVisible != 0) {
-            ccStart = nTos / MAX_RECIPIENTS;
-            bccStart = nHandlers;
-        } else {
-            ccStart = nTos / MAX_RECIPIENTS;
-            bccStart = nVisible / MAX_RECIPIENTS;
-        }
-
-        int i;
-        for (i = 0; i < ccStart; i++) { // Tos only
-            handlers.add(new MimeMessageHandler(locale, split.get(i), null, null));
-        }
-        if (i < nHandlers && mixedTos != 0) {
-            partial = split.get(i);
-            if (nCcs == 0) { //Tos along with Bccs
-                handler = new MimeMessageHandler(locale, partial.subList(0, mixedTos), null,
-                        partial.subList(mixedTos, partial.size()));
-            } else if (ccStart == bccStart) {// Tos along with Ccs and Bccs
-                handler = new MimeMessageHandler(locale, partial.subList(0, mixedTos), partial.subList(mixedTos, mixedVisible),
-                        partial.subList(mixedVisible, partial.size()));
-            } else { // Tos along with Ccs
-                handler = new MimeMessageHandler(locale, partial.subList(0, mixedTos), partial.subList(mixedTos, partial.size()),
-                        null);
+    /**
+     * @return the destination used to batch recipients when batching by domain: the domain of the address, or the mail
+     * exchanger configured for it, so that domains sharing a mail exchanger are batched together
+     */
+    static String batchKey(String address) {
+        String domain = DomainThrottle.domainOf(address);
+        return MX_HOSTS.getOrDefault(domain, domain);
+    }
+
+    /**
+     * Delivers this handler's mime message in three steps: the message is built from a read-only snapshot of the domain,
+     * handed to the SMTP relay outside of any transaction and only then is the outcome recorded in a short write
+     * transaction. A conflict while recording therefore never sends the message again: recording is retried on its own,
+     * and if it keeps failing the handler is left leased, so that it is only sent again once the lease expires. If the
+     * message could not be built or handed over at all, for whatever reason, the failed attempt is recorded and the
+     * handler is left to be retried according to the {@link RetryPolicy}. Personalized messages are rendered and sent to
+     * each recipient separately.
+     *
+     * @return the destination domains the relay temporarily refused (4xx) recipients of, see
+     *         {@link DomainThrottle#deferredDomains(Exception, Set)}
+     */
+    public Set<String> deliver() throws MessagingException {
+        DeliveryOutcome outcome;
+        try {
+            outcome = attempt();
+        } catch (MessagingException e) {
+            failedAttempt();
+            throw e;
+        } catch (RuntimeException e) {
+            failedAttempt();
+            throw new MessagingException("Could not deliver mime message handler " + getExternalId(), e);
+        }
+        return outcome == null ? Collections.emptySet() : record(outcome);
+    }
+
+    /* Builds and sends the mime messages of this handler, or returns null if it was delivered by a concurrent run. */
+    private DeliveryOutcome attempt() throws MessagingException {
+        List<Recipient> recipients = personalizedRecipients();
+        if (recipients != null) {
+            return send(recipients);
+        }
+        SpooledMimeMessage message = snapshot();
+        if (message == null) {
+            return null;
+        }
+        try {
+            return send(message);
+        } finally {
+            message.close();
+        }
+    }
+
+    /* Renders and sends the message to each recipient in turn, so that only one rendering is held at a time. A recipient
+     * whose message cannot be rendered, for instance because the provider of its parameters failed, counts as failed.
+     * If the relay fails once some recipients were sent, the rest are retried as a later attempt, like those it refuses
+     * for transient reasons. */
+    private DeliveryOutcome send(List<Recipient> recipients) throws MessagingException {
+        DeliveryOutcome outcome = new DeliveryOutcome(0);
+        boolean handedOver = false;
+        for (int i = 0; i < recipients.size(); i++) {
+            Recipient recipient = recipients.get(i);
+            List<SharedFileInputStream> attachments = new ArrayList<>();
+            try {
+                MimeMessage message;
+                try {
+                    message = personalize(recipient, i, attachments);
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Could not render personalized message of handler {} for {}", getExternalId(),
+                            recipient.address, e);
+                    outcome.unrendered();
+                    continue;
+                }
+                if (message == null) {
+                    return handedOver ? outcome : null;
+                }
+                outcome.add(send(message));
+                handedOver = true;
+            } catch (MessagingException | RuntimeException e) {
+                // retrying the whole handler would send the message again to the recipients already handed over
+                if (!handedOver) {
+                    throw e;
+                }
+                logger.warn("Could not send personalized mime message {} of handler {}, retrying the rest later", i,
+                        getExternalId(), e);
+                for (Recipient unsent : recipients.subList(i, recipients.size())) {
+                    outcome.unsent(Collections.singleton(new InternetAddress(unsent.address)));
+                }
+                break;
+            } finally {
+                attachments.forEach(MimeMessageHandler::closeQuietly);
             }
-            handlers.add(handler);
-            i++;
         }
-        for (; i < bccStart; i++) { // Ccs only
-            handlers.add(new MimeMessageHandler(locale, null, split.get(i), null));
+        return outcome;
+    }
+
+    /**
+     * Records a failed attempt to deliver this handler, giving up its lease until the retry is due, or counting its
+     * recipients as failed once retries are exhausted. Failures while delivering are recorded by {@link #deliver()}
+     * itself, this is for those of the caller after claiming the handler.
+     */
+    public void failedAttempt() {
+        DateTime retry = retryLater();
+        if (retry != null) {
+            RetryIndex.schedule(getExternalId(), retry);
         }
-        if (i < nHandlers && mixedVisible != 0 && ccStart != bccStart) { // Ccs along with Bccs
-            partial = split.get(i);
-            handlers.add(new MimeMessageHandler(locale, null, partial.subList(0, mixedVisible),
-                    partial.subList(mixedVisible, partial.size())));
-            i++;
+    }
+
+    private Set<String> record(DeliveryOutcome outcome) {
+        boolean committed;
+        for (int attempt = 1;; attempt++) {
+            try {
+                committed = commit(outcome);
+                break;
+            } catch (RuntimeException e) {
+                if (attempt >= RECORD_ATTEMPTS) {
+                    logger.error("Could not record the delivery of mime message handler {}, leaving it leased", getExternalId());
+                    throw e;
+                }
+                logger.warn("Could not record the delivery of mime message handler {}, retrying", getExternalId(), e);
+                try {
+                    Thread.sleep(RECORD_BACKOFF * attempt);
+                } catch (InterruptedException i) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
         }
-        for (; i < nHandlers; i++) { // Bccs only
-            handlers.add(new MimeMessageHandler(locale, null, null, split.get(i)));
+        if (committed) {
+            outcome.getFailed().forEach(BlacklistBuffer::addFailedAddress);
         }
-        return handlers;
+        return outcome.getDeferred();
     }
 
+    /**
+     * Claims this handler for delivery by the given node, so that nodes sharing the same unfinished reports deliver
+     * disjoint handlers, according to the {@link LeasePolicy}.
+     *
+     * @return whether the handler was claimed, and should be delivered by the given node
+     */
     @Atomic(mode = TxMode.WRITE)
-    public void deliver() throws MessagingException {
+    public boolean claim(String node, long leaseDuration) {
+        if (getReport() == null) {
+            return false;
+        }
+        DateTime now = new DateTime();
+        DateTime unavailable = LeasePolicy.unavailableUntil(getNextAttempt(), getLeaseOwner(), getLeaseExpiry(), node, now);
+        if (unavailable != null) {
+            RetryIndex.schedule(getExternalId(), unavailable);
+            return false;
+        }
+        setLeaseOwner(node);
+        setLeaseExpiry(now.plus(leaseDuration));
+        return true;
+    }
+
+    /**
+     * Gives up the lease of the given node on this handler, so that any node may deliver it.
+     */
+    @Atomic(mode = TxMode.WRITE)
+    public void release(String node) {
+        if (getReport() != null && LeasePolicy.isHeldBy(getLeaseOwner(), node)) {
+            setLeaseOwner(null);
+            setLeaseExpiry(null);
+        }
+    }
+
+    @Atomic(mode = TxMode.READ)
+    public Multiset<String> getRecipientDomains() {
+        Multiset<String> domains = HashMultiset.create();
+        Stream.of(getToAddresses(), getCcAddresses(), getBccAddresses()).map(MessagingSystem.Util::toEmailSet)
+                .flatMap(Set::stream).map(DomainThrottle::domainOf).forEach(domains::add);
+        return domains;
+    }
+
+    @Atomic(mode = TxMode.READ)
+    public MessagePriority getPriority() {
         LocalEmailMessageDispatchReport report = getReport();
-        try {
-            MimeMessage message = mimeMessage();
-            Transport.send(message);
-            report.setDeliveredCount(report.getDeliveredCount() + message.getAllRecipients().length);
+        return report == null ? MessagePriority.NORMAL : report.getMessage().getPriority();
+    }
+
+    @Atomic(mode = TxMode.READ)
+    public String getSenderAddress() {
+        LocalEmailMessageDispatchReport report = getReport();
+        return report == null ? null : report.getMessage().getSender().getAddress();
+    }
+
+    @Atomic(mode = TxMode.READ)
+    private SpooledMimeMessage snapshot() throws MessagingException {
+        // a handler without report was already delivered by a concurrent run
+        return getReport() == null ? null : mimeMessage();
+    }
+
+    /* Failed addresses are blacklisted by the caller once this commits, see BlacklistBuffer. */
+    @Atomic(mode = TxMode.WRITE)
+    private boolean commit(DeliveryOutcome outcome) {
+        LocalEmailMessageDispatchReport report = getReport();
+        if (report == null) {
+            logger.warn("Mime message handler {} was removed while being delivered", getExternalId());
+            return false;
         }
-        catch (SendFailedException e) {
-            if (e.getValidSentAddresses() != null) {
-                report.setDeliveredCount(report.getDeliveredCount() + e.getValidSentAddresses().length);
-            }
+        report.setDeliveredCount(report.getDeliveredCount() + outcome.getDelivered());
+        report.setFailedCount(report.getFailedCount() + outcome.getFailed().size() + outcome.getUnrendered());
+        if (!outcome.getUnsent().isEmpty()) {
+            resend(outcome.getUnsent().toArray(new Address[0]));
+        }
+        delete();
+        return true;
+    }
+
+    /* Records a failed attempt, returning when the next one is due, or null if retries are exhausted and the recipients
+     * were counted as failed. */
+    @Atomic(mode = TxMode.WRITE)
+    private DateTime retryLater() {
+        LocalEmailMessageDispatchReport report = getReport();
+        if (report == null) {
+            return null;
+        }
+        setAttempts(getAttempts() + 1);
+        if (getFirstAttempt() == null) {
+            setFirstAttempt(new DateTime());
+        }
+        if (RetryPolicy.isExhausted(getAttempts(), getFirstAttempt())) {
+            logger.warn("Giving up on mime message handler {} after {} attempts", getExternalId(), getAttempts());
+            report.setFailedCount(report.getFailedCount() + getRecipientCount());
+            delete();
+            return null;
+        }
+        setNextAttempt(RetryPolicy.nextAttempt(getAttempts()));
+        setLeaseOwner(null);
+        setLeaseExpiry(null);
+        return getNextAttempt();
+    }
+
+    private int getRecipientCount() {
+        return Stream.of(getToAddresses(), getCcAddresses(), getBccAddresses()).map(MessagingSystem.Util::toEmailSet)
+                .mapToInt(Set::size).sum();
+    }
+
+    private static DeliveryOutcome send(MimeMessage message) throws MessagingException {
+        try {
+            transportPool().send(message);
+            return new DeliveryOutcome(message.getAllRecipients().length);
+        } catch (SendFailedException e) {
+            DeliveryOutcome outcome =
+                    new DeliveryOutcome(e.getValidSentAddresses() != null ? e.getValidSentAddresses().length : 0);
             if (e.getInvalidAddresses() != null) {
-                report.setFailedCount(report.getFailedCount() + e.getInvalidAddresses().length);
-                for (Address failed : e.getInvalidAddresses()) {
-                    EmailBlacklist.getInstance().addFailedAddress(failed.toString());
-                }
+                outcome.failed(Arrays.asList(e.getInvalidAddresses()));
             }
+            Set<String> domains = Stream.of(message.getAllRecipients())
+                    .map(address -> DomainThrottle.domainOf(((InternetAddress) address).getAddress())).collect(Collectors.toSet());
+            outcome.deferred(DomainThrottle.deferredDomains(e, domains));
             if (e.getValidUnsentAddresses() != null) {
                 HashSet<InternetAddress> invalidAddresses = getInvalidsFromExceptionChain(e.getNextException());
-                report.setFailedCount(report.getFailedCount() + invalidAddresses.size());
-                invalidAddresses.forEach(failed -> EmailBlacklist.getInstance().addFailedAddress(failed.toString()));
-
-                Address[] onlyValidAddress = Sets.difference(Sets.newHashSet(e.getValidUnsentAddresses()), invalidAddresses)
-                                .toArray(new Address[0]);
-                resend(onlyValidAddress);
+                outcome.failed(invalidAddresses);
+                outcome.unsent(Sets.difference(Sets.newHashSet(e.getValidUnsentAddresses()), invalidAddresses));
             }
+            return outcome;
         }
-        delete();
     }
 
-    private HashSet<InternetAddress> getInvalidsFromExceptionChain(Exception nextException) {
+    private static HashSet<InternetAddress> getInvalidsFromExceptionChain(Exception nextException) {
         HashSet<InternetAddress> invalidAddresses = Sets.newHashSet();
         while (nextException != null) {
             if (nextException instanceof SMTPAddressFailedException) {
@@ -334,11 +595,25 @@ public final class MimeMessageHandler extends MimeMessageHandler_Base {
                         return RecipientType.BCC;
                     }
                 }));
-        getReport().addHandler(new MimeMessageHandler(getLocale(), unsent.get(RecipientType.TO), unsent.get(RecipientType.CC),
-                unsent.get(RecipientType.BCC)));
+        // unsent recipients were refused for transient reasons, so they are retried as a later attempt of this handler
+        int attempts = getAttempts() + 1;
+        DateTime firstAttempt = getFirstAttempt() == null ? new DateTime() : getFirstAttempt();
+        if (RetryPolicy.isExhausted(attempts, firstAttempt)) {
+            logger.warn("Giving up on {} unsent recipients of mime message handler {} after {} attempts",
+                    validUnsentAddresses.length, getExternalId(), attempts);
+            getReport().setFailedCount(getReport().getFailedCount() + validUnsentAddresses.length);
+            return;
+        }
+        MimeMessageHandler handler = new MimeMessageHandler(getLocale(), unsent.get(RecipientType.TO),
+                unsent.get(RecipientType.CC), unsent.get(RecipientType.BCC));
+        handler.setAttempts(attempts);
+        handler.setFirstAttempt(firstAttempt);
+        handler.setNextAttempt(RetryPolicy.nextAttempt(attempts));
+        getReport().addHandler(handler);
     }
 
     public void delete() {
+        RetryIndex.remove(getExternalId());
         setReport(null);
         super.deleteDomainObject();
     }
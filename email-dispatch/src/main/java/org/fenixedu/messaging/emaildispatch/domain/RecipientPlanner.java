@@ -0,0 +1,428 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.fenixedu.bennu.core.domain.User;
+import org.fenixedu.bennu.core.groups.Group;
+import org.fenixedu.messaging.core.dispatch.OptInIndex;
+import org.fenixedu.messaging.core.dispatch.UserBitmap;
+import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.core.domain.Sender;
+import org.fenixedu.messaging.emaildispatch.EmailDispatchConfiguration;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import pt.ist.fenixframework.FenixFramework;
+
+/**
+ * Resolves the recipients of a message into mime message handlers. Group members are resolved once into compressed user
+ * bitmaps, where role precedence and opt-in filtering are set operations and iteration follows the user index, so the
+ * sequence of recipients has a deterministic order and planning can be split into chunks and resumed from a cursor
+ * persisted in the report, by this or any other node. Ad hoc addresses follow the users as sorted lists. The cursor is
+ * the last planned recipient of its segment, a user index or an address, rather than an ordinal, so it does not shift
+ * when the memberships, opt outs or blacklist a planner was built from change before planning resumes: the recipients
+ * planned so far are never planned again nor are the remaining ones skipped, and only recipients that joined before
+ * the cursor are missed. Duplicate addresses are detected by their normalized form, and a handler is emitted as soon as
+ * enough recipients with the same locale (and destination, when batching by domain) are gathered, so memory is bounded
+ * by the addresses planned and the pending batches rather than by the size of the groups. Addresses suppressed by the
+ * blacklist policy, read once per planner, are left out of the handlers and only counted.
+ *
+ * Planners are kept by each node while their report is planning, and dropped once it stops, whichever node finished it,
+ * or after a while without being used, since they can always be rebuilt from the persisted cursor.
+ *
+ * Recipients are walked in order of precedence, tos, ccs, bccs, single tos and single bccs, and only kept in the first
+ * role they appear in, which keeps the recipient lists disjoint.
+ */
+final class RecipientPlanner {
+    private static final int MAX_RECIPIENTS = EmailDispatchConfiguration.getConfiguration().mailSenderMaxRecipients();
+    private static final boolean BATCH_BY_DOMAIN =
+            "domain".equalsIgnoreCase(EmailDispatchConfiguration.getConfiguration().mailSenderBatching());
+    private static final boolean RECIPIENTS_AS_BCCS = EmailDispatchConfiguration.getConfiguration().recipientsAsBccs();
+    private static final boolean SUPPRESS_INVALID = EmailDispatchConfiguration.getConfiguration().mailSenderSuppressInvalid();
+    private static final int SUPPRESS_FAILURES = EmailDispatchConfiguration.getConfiguration().mailSenderSuppressFailures();
+
+    /**
+     * The cursor of a report whose planning did not start yet.
+     */
+    static final String START = "0:";
+
+    private static final long PLANNER_IDLE_MINUTES = 30;
+
+    private static final Cache<String, RecipientPlanner> planners =
+            CacheBuilder.newBuilder().expireAfterAccess(PLANNER_IDLE_MINUTES, TimeUnit.MINUTES).build();
+
+    enum Role {
+        TO, CC, BCC
+    }
+
+    /* A run of recipients of the same role, either users of a bitmap in index order or sorted ad hoc addresses. */
+    private static final class Segment {
+        private final Role role;
+        private final UserBitmap users;
+        private final List<String> addresses;
+
+        private Segment(Role role, UserBitmap users) {
+            this.role = role;
+            this.users = users;
+            this.addresses = null;
+        }
+
+        private Segment(Role role, Set<String> addresses) {
+            this.role = role;
+            this.users = null;
+            this.addresses = new ArrayList<>(new TreeSet<>(addresses));
+        }
+    }
+
+    private interface RecipientVisitor {
+        void visit(Role role, User user, String address);
+    }
+
+    private static final class BatchKey {
+        private final Locale locale;
+        private final String destination;
+
+        private BatchKey(Locale locale, String destination) {
+            this.locale = locale;
+            this.destination = destination;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BatchKey && ((BatchKey) o).locale.equals(locale) && ((BatchKey) o).destination
+                    .equals(destination);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(locale, destination);
+        }
+    }
+
+    /* Recipients arrive in role order, so filling a batch up to the limit before emitting it is the same moving window
+     * that keeps tos and ccs visible to each other in the most common case. */
+    static final class Batch {
+        private final List<String> tos = new ArrayList<>(), ccs = new ArrayList<>(), bccs = new ArrayList<>();
+
+        int size() {
+            return tos.size() + ccs.size() + bccs.size();
+        }
+
+        List<String> getTos() {
+            return tos;
+        }
+
+        List<String> getCcs() {
+            return ccs;
+        }
+
+        List<String> getBccs() {
+            return bccs;
+        }
+
+        private void add(Role role, String address) {
+            (role == Role.TO ? tos : role == Role.CC ? ccs : bccs).add(address);
+        }
+    }
+
+    /**
+     * Gathers recipients into batches of the same locale and destination, handing each batch over as soon as it is full.
+     * With a single destination for every address this is the moving window, with the destination domain of each address
+     * it is batching by domain.
+     */
+    static final class Batcher {
+        private final Function<String, String> destination;
+        private final int limit;
+        private final BiConsumer<Locale, Batch> sink;
+        private final Map<BatchKey, Batch> batches = new HashMap<>();
+
+        Batcher(Function<String, String> destination, int limit, BiConsumer<Locale, Batch> sink) {
+            this.destination = destination;
+            this.limit = limit;
+            this.sink = sink;
+        }
+
+        void add(Role role, Locale locale, String address) {
+            BatchKey key = new BatchKey(locale, destination.apply(address));
+            Batch batch = batches.computeIfAbsent(key, k -> new Batch());
+            batch.add(role, address);
+            if (batch.size() >= limit) {
+                sink.accept(key.locale, batches.remove(key));
+            }
+        }
+
+        /**
+         * Hands over the partial batches.
+         */
+        void flush() {
+            batches.forEach((key, batch) -> sink.accept(key.locale, batch));
+            batches.clear();
+        }
+    }
+
+    /**
+     * Outcome of planning a range of the recipient sequence. The addresses it saw are only added to the planner once the
+     * transaction that created its handlers commits, so that a restarted transaction plans the range again from scratch.
+     */
+    final class Chunk {
+        private final String start;
+        private String end;
+        private final Set<String> seen = new HashSet<>();
+        private final List<MimeMessageHandler> handlers = new ArrayList<>();
+        private final List<String> invalids = new ArrayList<>();
+        private int valids = 0, suppressed = 0;
+
+        private Chunk(String start) {
+            this.start = start;
+        }
+
+        boolean isLast() {
+            return end == null;
+        }
+
+        /**
+         * @return the cursor after the last recipient of this chunk, or null if it is the last one
+         */
+        String getEnd() {
+            return end;
+        }
+
+        int getValidCount() {
+            return valids;
+        }
+
+        int getSuppressedCount() {
+            return suppressed;
+        }
+
+        List<String> getInvalids() {
+            return invalids;
+        }
+
+        List<MimeMessageHandler> getHandlers() {
+            return handlers;
+        }
+    }
+
+    private final Sender sender;
+    private final Locale defLocale;
+    private final Set<Locale> messageLocales;
+    private final Set<String> suppressed;
+    private final List<Segment> sequence = new ArrayList<>();
+    private Set<String> seen = new HashSet<>();
+    private String position = START;
+
+    private RecipientPlanner(Message message) {
+        this.sender = message.getSender();
+        this.defLocale = message.getPreferredLocale();
+        this.messageLocales = message.getContentLocales();
+        EmailBlacklist blacklist = MessagingSystem.getInstance().getBlacklist();
+        this.suppressed =
+                blacklist == null ? Collections.emptySet() : blacklist.getSuppressedEmails(SUPPRESS_INVALID, SUPPRESS_FAILURES);
+        Role to = RECIPIENTS_AS_BCCS ? Role.BCC : Role.TO, cc = RECIPIENTS_AS_BCCS ? Role.BCC : Role.CC;
+        // role precedence and opt-in filtering as word-parallel set operations over user bitmaps
+        UserBitmap optedOut = OptInIndex.getInstance().optedOut();
+        UserBitmap optedIn = sender.getOptInRequired() ? OptInIndex.getInstance().optedIn(sender) : null;
+        UserBitmap tos = allowed(message.getToGroups(), optedOut, optedIn);
+        UserBitmap ccs = allowed(message.getCcGroups(), optedOut, optedIn).andNot(tos);
+        UserBitmap bccs = allowed(message.getBccGroups(), optedOut, optedIn).andNot(tos.or(ccs));
+        sequence.add(new Segment(to, tos));
+        sequence.add(new Segment(cc, ccs));
+        sequence.add(new Segment(Role.BCC, bccs));
+        sequence.add(new Segment(to, message.getSingleTosSet()));
+        sequence.add(new Segment(Role.BCC, message.getSingleBccsSet()));
+    }
+
+    /**
+     * @return the planner of the given report, resolving the recipients of its message if this node has not done so yet
+     */
+    static RecipientPlanner of(LocalEmailMessageDispatchReport report) {
+        evictStopped();
+        try {
+            return planners.get(report.getExternalId(), () -> new RecipientPlanner(report.getMessage()));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            // resolving the recipients only throws unchecked exceptions
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    static void discard(LocalEmailMessageDispatchReport report) {
+        planners.invalidate(report.getExternalId());
+    }
+
+    /* Reports finished by another node, or deleted, are never planned by this one again. */
+    private static void evictStopped() {
+        Set<LocalEmailMessageDispatchReport> unfinished = MessagingSystem.getInstance().getUnfinishedReportsSet();
+        planners.asMap().keySet().removeIf(id -> {
+            LocalEmailMessageDispatchReport report = FenixFramework.getDomainObject(id);
+            return !unfinished.contains(report) || !report.isPlanning();
+        });
+    }
+
+    private static UserBitmap allowed(Set<Group> groups, UserBitmap optedOut, UserBitmap optedIn) {
+        UserBitmap members = UserBitmap.of(groups.stream().flatMap(Group::getMembers)).andNot(optedOut);
+        return optedIn == null ? members : members.and(optedIn);
+    }
+
+    private Locale locale(User user) {
+        if (user == null) {
+            return defLocale;
+        }
+        Locale locale = user.getProfile().getPreferredLocale();
+        return locale == null || !messageLocales.contains(locale) ? defLocale : locale;
+    }
+
+    private static int segmentOf(String cursor) {
+        return Integer.parseInt(cursor.substring(0, cursor.indexOf(':')));
+    }
+
+    private static String keyOf(String cursor) {
+        return cursor.substring(cursor.indexOf(':') + 1);
+    }
+
+    private int compare(String cursor, String other) {
+        int c = Integer.compare(segmentOf(cursor), segmentOf(other));
+        String key = keyOf(cursor), otherKey = keyOf(other);
+        if (c != 0 || key.isEmpty() || otherKey.isEmpty()) {
+            return c != 0 ? c : Boolean.compare(!key.isEmpty(), !otherKey.isEmpty());
+        }
+        return sequence.get(segmentOf(cursor)).users != null ? Integer
+                .compareUnsigned(Integer.parseUnsignedInt(key), Integer.parseUnsignedInt(otherKey)) : key.compareTo(otherKey);
+    }
+
+    /* Visits at most the given number of recipients after the from cursor, and up to the to cursor inclusive if not null,
+     * skipping users without a profile. Returns the cursor of the last recipient visited, or null if the walk reached
+     * the end of the sequence. A cursor is a segment and the last recipient visited in it, either a user index or an
+     * address, and an empty key for the start of the segment. */
+    private String walk(String from, String to, int limit, RecipientVisitor visitor) {
+        int last = to == null ? sequence.size() - 1 : segmentOf(to), walked = 0;
+        String key = keyOf(from);
+        for (int s = segmentOf(from); s <= last; s++, key = "") {
+            Segment segment = sequence.get(s);
+            // the bound only applies within its own segment, and an empty one excludes the whole segment
+            String until = s == last && to != null ? keyOf(to) : null;
+            if (segment.users != null) {
+                PrimitiveIterator.OfInt users = key.isEmpty() ? segment.users.iterator(0) : segment.users
+                        .iteratorFrom(Integer.parseUnsignedInt(key) + 1);
+                while (users.hasNext()) {
+                    if (walked == limit) {
+                        return s + ":" + key;
+                    }
+                    int index = users.nextInt();
+                    if (until != null && (until.isEmpty() || Integer.compareUnsigned(index, Integer.parseUnsignedInt(until)) > 0)) {
+                        break;
+                    }
+                    User user = UserBitmap.userOf(index);
+                    if (user.getProfile() != null) {
+                        visitor.visit(segment.role, user, user.getProfile().getEmail());
+                    }
+                    key = Integer.toUnsignedString(index);
+                    walked++;
+                }
+            } else {
+                int i = Collections.binarySearch(segment.addresses, key);
+                for (i = i >= 0 ? i + 1 : -i - 1; i < segment.addresses.size(); i++) {
+                    if (walked == limit) {
+                        return s + ":" + key;
+                    }
+                    String address = segment.addresses.get(i);
+                    if (until != null && address.compareTo(until) > 0) {
+                        break;
+                    }
+                    visitor.visit(segment.role, null, address);
+                    key = address;
+                    walked++;
+                }
+            }
+        }
+        return to;
+    }
+
+    /**
+     * Plans at most the given number of recipients after the given cursor, emitting their handlers to the sink. Must run
+     * in the transaction that persists the resulting cursor, see {@link #commit(Chunk)}.
+     */
+    synchronized Chunk plan(String from, int limit, Consumer<MimeMessageHandler> sink) {
+        if (!from.equals(position)) {
+            // another node, or a transaction of this one that did not commit, planned up to a different cursor
+            seek(from);
+        }
+        Chunk chunk = new Chunk(from);
+        Batcher batcher = new Batcher(BATCH_BY_DOMAIN ? MimeMessageHandler::batchKey : address -> "", MAX_RECIPIENTS,
+                (locale, batch) -> emit(chunk, locale, batch, sink));
+        chunk.end = walk(chunk.start, null, limit, (role, user, address) -> {
+            if (address == null) {
+                return;
+            }
+            String normalized = EmailBlacklist.normalize(address);
+            if (seen.contains(normalized) || !chunk.seen.add(normalized)) {
+                return;
+            }
+            if (!MessagingSystem.Util.isValidEmail(address)) {
+                chunk.invalids.add(address);
+                return;
+            }
+            if (suppressed.contains(normalized)) {
+                // known to be undeliverable, not worth a round trip to the relay
+                chunk.suppressed++;
+                return;
+            }
+            chunk.valids++;
+            batcher.add(role, locale(user), address);
+        });
+        // partial batches are emitted at the end of each chunk, so nothing but the cursor needs to be persisted
+        batcher.flush();
+        return chunk;
+    }
+
+    /**
+     * Records a chunk whose handlers were committed, so the next one continues from its end.
+     */
+    synchronized void commit(Chunk chunk) {
+        if (chunk.start.equals(position)) {
+            seen.addAll(chunk.seen);
+            position = chunk.end;
+        }
+    }
+
+    private void seek(String to) {
+        if (position == null || compare(to, position) < 0) {
+            seen = new HashSet<>();
+            position = START;
+        }
+        walk(position, to, Integer.MAX_VALUE, (role, user, address) -> {
+            if (address != null) {
+                seen.add(EmailBlacklist.normalize(address));
+            }
+        });
+        position = to;
+    }
+
+    private static void emit(Chunk chunk, Locale locale, Batch batch, Consumer<MimeMessageHandler> sink) {
+        if (batch.size() > 0) {
+            MimeMessageHandler handler = new MimeMessageHandler(locale, batch.tos.isEmpty() ? null : batch.tos,
+                    batch.ccs.isEmpty() ? null : batch.ccs, batch.bccs.isEmpty() ? null : batch.bccs);
+            chunk.handlers.add(handler);
+            sink.accept(handler);
+        }
+    }
+}
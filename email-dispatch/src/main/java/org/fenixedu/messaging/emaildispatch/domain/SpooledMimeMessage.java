@@ -0,0 +1,35 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import java.io.IOException;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Mime message parsed from a spooled file. Its content is never copied into memory, so the spool file stays open until
+ * the message is closed.
+ */
+final class SpooledMimeMessage extends MimeMessage implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SpooledMimeMessage.class);
+
+    private final SharedFileInputStream source;
+
+    SpooledMimeMessage(Session session, SharedFileInputStream source) throws MessagingException {
+        super(session, source);
+        this.source = source;
+    }
+
+    @Override
+    public void close() {
+        try {
+            source.close();
+        } catch (IOException e) {
+            logger.debug("Error closing spooled mime message", e);
+        }
+    }
+}
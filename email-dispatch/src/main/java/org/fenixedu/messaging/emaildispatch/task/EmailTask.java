@@ -24,15 +24,34 @@
  */
 package org.fenixedu.messaging.emaildispatch.task;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
 import org.fenixedu.bennu.scheduler.CronTask;
 import org.fenixedu.bennu.scheduler.annotation.Task;
+import org.fenixedu.messaging.core.domain.MessagePriority;
 import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.emaildispatch.delivery.DeliveryEngine;
+import org.fenixedu.messaging.emaildispatch.delivery.DispatchService;
+import org.fenixedu.messaging.emaildispatch.delivery.FairShareScheduler;
 import org.fenixedu.messaging.emaildispatch.domain.LocalEmailMessageDispatchReport;
 
 @Task(englishTitle = "Email Sender", readOnly = true)
 public class EmailTask extends CronTask {
     @Override
     public void runTask() throws Exception {
-        MessagingSystem.getInstance().getUnfinishedReportsSet().forEach(LocalEmailMessageDispatchReport::deliver);
+        List<LocalEmailMessageDispatchReport> reports = new ArrayList<>(MessagingSystem.getInstance().getUnfinishedReportsSet());
+        reports.sort(Comparator.comparing(LocalEmailMessageDispatchReport::getMessage, MessagePriority.dispatchOrder()));
+        // handlers from every report share the same worker pool, interleaved by sender instead of one report at a time
+        FairShareScheduler.Schedule schedule = FairShareScheduler.getInstance().schedule(reports);
+        schedule.getQueueDepths().forEach((sender, depth) -> taskLog("Sender %s has %d mime messages queued%n", sender, depth));
+        DeliveryEngine engine = DeliveryEngine.getInstance();
+        engine.getQueueDepths().forEach((sender, depth) -> taskLog("Sender %s has %d mime messages waiting for delivery%n", sender, depth));
+        engine.deliver(schedule.getHandlers());
+        // the task's transaction predates the deliveries, so the reports are checked in new ones
+        LocalEmailMessageDispatchReport.finishIfDone(reports);
+        // reports whose planning was interrupted, or never started because the message was dispatched by the periodic task
+        reports.stream().filter(LocalEmailMessageDispatchReport::isPlanning).forEach(DispatchService::resume);
     }
 }
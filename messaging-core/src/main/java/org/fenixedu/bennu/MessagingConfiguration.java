@@ -9,6 +9,8 @@ import org.fenixedu.commons.configuration.ConfigurationProperty;
 public class MessagingConfiguration {
 
     public static final String OPTIN_STATUS_UPDATE = "messaging.optInConfig.update";
+    public static final String OPTOUT_STATUS_UPDATE = "messaging.optOutConfig.update";
+    public static final String MESSAGE_SENT = "messaging.message.sent";
 
     @ConfigurationManager(description = "Email Dispatcher Configurations")
     public interface ConfigurationProperties {
@@ -26,6 +28,22 @@ public class MessagingConfiguration {
 
         @ConfigurationProperty(key = "messaging.files.prune.min.days", defaultValue = "3")
         Integer minPruningDays();
+
+        @ConfigurationProperty(key = "messaging.priority.aging.minutes", defaultValue = "15",
+                description = "Minutes a message waits per priority lane it is below the highest one, after which it is served before newer messages of higher lanes")
+        Integer priorityAgingMinutes();
+
+        @ConfigurationProperty(key = "messaging.template.cache.size", defaultValue = "1000",
+                description = "Maximum number of compiled message templates kept in memory, one per template, part and locale")
+        Integer templateCacheSize();
+
+        @ConfigurationProperty(key = "messaging.template.precompile", defaultValue = "true",
+                description = "If true, every message template is compiled in every locale at startup, warming the compiled template cache and reporting malformed templates")
+        Boolean templatePrecompile();
+
+        @ConfigurationProperty(key = "messaging.template.precompile.strict", defaultValue = "false",
+                description = "If true, the application fails to start when a message template does not compile")
+        Boolean templatePrecompileStrict();
     }
 
     public static ConfigurationProperties getConfiguration() {
@@ -0,0 +1,83 @@
+package org.fenixedu.messaging.core.dispatch;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.fenixedu.bennu.core.domain.User;
+import org.fenixedu.messaging.core.domain.MessagingSystem;
+import org.fenixedu.messaging.core.domain.OptOutShard;
+import org.fenixedu.messaging.core.domain.Sender;
+
+/**
+ * In-memory index of the users who opted out of messaging and of the users who opted in to each sender, so that
+ * filtering recipients is a bitmap operation instead of a lookup in the opt out registry or in the opted in users of a
+ * sender for every user. Each bitmap is kept with the stamp of the registry or sender it was built from, see
+ * {@link MessagingSystem#getOptOutStamp()} and {@link Sender#getOptInStamp()}, and rebuilt as soon as the stamp read in the
+ * current transaction differs, so changes made on any node are seen by the next transaction that starts after them.
+ */
+public final class OptInIndex {
+    private static final String OPTED_OUT = "";
+
+    private static OptInIndex instance = null;
+
+    /* Bitmaps are never modified once published, changes build new ones. */
+    private static final class Entry {
+        private final UserBitmap users;
+        private final long stamp;
+
+        private Entry(UserBitmap users, long stamp) {
+            this.users = users;
+            this.stamp = stamp;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private OptInIndex() {
+    }
+
+    public static synchronized OptInIndex getInstance() {
+        if (instance == null) {
+            instance = new OptInIndex();
+        }
+        return instance;
+    }
+
+    /**
+     * @return the users who opted out of messaging. Must be called in a transaction. The bitmap must not be modified.
+     */
+    public UserBitmap optedOut() {
+        MessagingSystem system = MessagingSystem.getInstance();
+        return get(OPTED_OUT, system.getOptOutStamp(), () -> OptOutShard.export(system));
+    }
+
+    /**
+     * @return the users who opted in to the given sender. Must be called in a transaction. The bitmap must not be modified.
+     */
+    public UserBitmap optedIn(Sender sender) {
+        return get(sender.getExternalId(), sender.getOptInStamp(), () -> UserBitmap.of(sender.getOptedInUsers().stream()));
+    }
+
+    public boolean isOptedOut(User user) {
+        return optedOut().contains(user);
+    }
+
+    public boolean isOptedIn(Sender sender, User user) {
+        return optedIn(sender).contains(user);
+    }
+
+    private interface Builder {
+        UserBitmap build();
+    }
+
+    /* The stamp and the bitmap are read in the same transaction, so the entry reflects exactly the state of that stamp. A
+     * transaction older than the cached entry rebuilds it from its own state, which the next one replaces again. */
+    private UserBitmap get(String key, long stamp, Builder builder) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.stamp != stamp) {
+            entry = new Entry(builder.build(), stamp);
+            entries.put(key, entry);
+        }
+        return entry.users;
+    }
+}
@@ -0,0 +1,315 @@
+package org.fenixedu.messaging.core.dispatch;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.fenixedu.bennu.core.domain.Bennu;
+import org.fenixedu.bennu.core.domain.User;
+
+import pt.ist.fenixframework.FenixFramework;
+
+/**
+ * Compressed set of users, for set algebra over large groups of recipients. Users are identified by a dense index, the
+ * per-class counter of their object identifier, and the index space is split in chunks of 65536 that are stored either as
+ * a sorted array, while sparse, or as a plain bitmap, once dense. Unions, intersections and differences work on whole
+ * words of the bitmaps, and iteration is in ascending index order, which is stable across nodes.
+ */
+public final class UserBitmap {
+    private static final int ARRAY_MAX = 4096, WORDS = 1024;
+
+    // object identifiers of users share the same upper half, identifying their class
+    private static volatile long userClass = -1;
+
+    private static final class Container {
+        private char[] array;
+        private long[] bits;
+        private int cardinality;
+
+        private Container() {
+            this.array = new char[4];
+        }
+
+        private Container(long[] bits, int cardinality) {
+            if (cardinality <= ARRAY_MAX) {
+                this.array = new char[cardinality];
+                int n = 0;
+                for (int w = 0; w < WORDS; w++) {
+                    long word = bits[w];
+                    while (word != 0) {
+                        array[n++] = (char) (w << 6 | Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                this.bits = bits;
+            }
+            this.cardinality = cardinality;
+        }
+
+        private boolean contains(char low) {
+            return bits != null ? (bits[low >>> 6] & 1L << low) != 0 : Arrays.binarySearch(array, 0, cardinality, low) >= 0;
+        }
+
+        private void add(char low) {
+            if (bits != null) {
+                long before = bits[low >>> 6];
+                bits[low >>> 6] |= 1L << low;
+                if (before != bits[low >>> 6]) {
+                    cardinality++;
+                }
+                return;
+            }
+            int i = Arrays.binarySearch(array, 0, cardinality, low);
+            if (i >= 0) {
+                return;
+            }
+            if (cardinality == ARRAY_MAX) {
+                bits = words();
+                array = null;
+                add(low);
+                return;
+            }
+            i = -i - 1;
+            if (cardinality == array.length) {
+                array = Arrays.copyOf(array, Math.min(ARRAY_MAX, array.length * 2));
+            }
+            System.arraycopy(array, i, array, i + 1, cardinality - i);
+            array[i] = low;
+            cardinality++;
+        }
+
+        private long[] words() {
+            if (bits != null) {
+                return bits.clone();
+            }
+            long[] words = new long[WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                words[array[i] >>> 6] |= 1L << array[i];
+            }
+            return words;
+        }
+
+        private char select(int rank) {
+            if (bits == null) {
+                return array[rank];
+            }
+            for (int w = 0; w < WORDS; w++) {
+                int count = Long.bitCount(bits[w]);
+                if (rank < count) {
+                    long word = bits[w];
+                    for (; rank > 0; rank--) {
+                        word &= word - 1;
+                    }
+                    return (char) (w << 6 | Long.numberOfTrailingZeros(word));
+                }
+                rank -= count;
+            }
+            throw new NoSuchElementException();
+        }
+
+        /* The number of members below the given low index. */
+        private int rank(char low) {
+            if (bits == null) {
+                int i = Arrays.binarySearch(array, 0, cardinality, low);
+                return i >= 0 ? i : -i - 1;
+            }
+            int rank = 0;
+            for (int w = 0; w < low >>> 6; w++) {
+                rank += Long.bitCount(bits[w]);
+            }
+            return rank + Long.bitCount(bits[low >>> 6] & (1L << low) - 1);
+        }
+
+        /* The next member from the given low index, inclusive, knowing it is the member of the given rank. */
+        private char next(int from, int rank) {
+            if (bits == null) {
+                return array[rank];
+            }
+            int w = from >>> 6;
+            long word = bits[w] & -1L << from;
+            while (word == 0) {
+                word = bits[++w];
+            }
+            return (char) (w << 6 | Long.numberOfTrailingZeros(word));
+        }
+    }
+
+    private interface WordOperation {
+        long apply(long a, long b);
+    }
+
+    private final TreeMap<Character, Container> containers = new TreeMap<>();
+
+    public static int indexOf(User user) {
+        long oid = Long.parseLong(user.getExternalId());
+        userClass = oid >>> 32;
+        return (int) oid;
+    }
+
+    public static User userOf(int index) {
+        if (userClass < 0) {
+            // bitmaps read from storage may be the first thing this node sees, any user tells the class of all of them
+            Bennu.getInstance().getUserSet().stream().findAny().ifPresent(UserBitmap::indexOf);
+            if (userClass < 0) {
+                throw new IllegalStateException("No user was indexed yet");
+            }
+        }
+        return FenixFramework.getDomainObject(Long.toString(userClass << 32 | index & 0xFFFFFFFFL));
+    }
+
+    public static UserBitmap of(Stream<User> users) {
+        UserBitmap bitmap = new UserBitmap();
+        users.forEach(bitmap::add);
+        return bitmap;
+    }
+
+    public void add(User user) {
+        add(indexOf(user));
+    }
+
+    public void add(int index) {
+        containers.computeIfAbsent((char) (index >>> 16), k -> new Container()).add((char) index);
+    }
+
+    public boolean contains(User user) {
+        return contains(indexOf(user));
+    }
+
+    public boolean contains(int index) {
+        Container container = containers.get((char) (index >>> 16));
+        return container != null && container.contains((char) index);
+    }
+
+    public int cardinality() {
+        return containers.values().stream().mapToInt(c -> c.cardinality).sum();
+    }
+
+    public boolean isEmpty() {
+        return containers.isEmpty();
+    }
+
+    public UserBitmap or(UserBitmap other) {
+        UserBitmap result = combine(other, (a, b) -> a | b, true);
+        other.containers.forEach((key, container) -> {
+            if (!containers.containsKey(key)) {
+                result.containers.put(key, new Container(container.words(), container.cardinality));
+            }
+        });
+        return result;
+    }
+
+    public UserBitmap and(UserBitmap other) {
+        return combine(other, (a, b) -> a & b, false);
+    }
+
+    public UserBitmap andNot(UserBitmap other) {
+        return combine(other, (a, b) -> a & ~b, true);
+    }
+
+    /* Applies the operation to the containers of this bitmap, pairing each with the same chunk of the other, or with an
+     * empty one if keepUnpaired. */
+    private UserBitmap combine(UserBitmap other, WordOperation operation, boolean keepUnpaired) {
+        UserBitmap result = new UserBitmap();
+        for (Map.Entry<Character, Container> entry : containers.entrySet()) {
+            Container pair = other.containers.get(entry.getKey());
+            if (pair == null && !keepUnpaired) {
+                continue;
+            }
+            long[] words = entry.getValue().words(), pairWords = pair == null ? null : pair.words();
+            int cardinality = 0;
+            for (int w = 0; w < WORDS; w++) {
+                words[w] = operation.apply(words[w], pairWords == null ? 0 : pairWords[w]);
+                cardinality += Long.bitCount(words[w]);
+            }
+            if (cardinality > 0) {
+                result.containers.put(entry.getKey(), new Container(words, cardinality));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the users in this bitmap, in ascending index order. Must be consumed in a transaction.
+     */
+    public Stream<User> users() {
+        return StreamSupport.intStream(Spliterators.spliteratorUnknownSize(iterator(0), Spliterator.ORDERED), false)
+                .mapToObj(UserBitmap::userOf);
+    }
+
+    /* Iterates from the member of the given rank in the given chunk, whose low index is at least from, then over the
+     * remaining chunks. */
+    private static final class Indexes implements PrimitiveIterator.OfInt {
+        private final Iterator<Map.Entry<Character, Container>> chunks;
+        private Map.Entry<Character, Container> chunk;
+        private int rank, from;
+
+        private Indexes(Iterator<Map.Entry<Character, Container>> chunks, Map.Entry<Character, Container> chunk, int rank,
+                int from) {
+            this.chunks = chunks;
+            this.chunk = chunk;
+            this.rank = rank;
+            this.from = from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (chunk != null && rank >= chunk.getValue().cardinality) {
+                chunk = chunks.hasNext() ? chunks.next() : null;
+                rank = from = 0;
+            }
+            return chunk != null;
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            char low = chunk.getValue().next(from, rank++);
+            from = low + 1;
+            return chunk.getKey() << 16 | low;
+        }
+    }
+
+    /**
+     * @param skip number of indexes to skip, in ascending order, before iterating
+     * @return an iterator over the indexes in this bitmap in ascending order
+     */
+    public PrimitiveIterator.OfInt iterator(int skip) {
+        Iterator<Map.Entry<Character, Container>> chunks = containers.entrySet().iterator();
+        int remaining = skip;
+        while (chunks.hasNext()) {
+            Map.Entry<Character, Container> chunk = chunks.next();
+            if (remaining < chunk.getValue().cardinality) {
+                return new Indexes(chunks, chunk, remaining, remaining == 0 ? 0 : chunk.getValue().select(remaining - 1) + 1);
+            }
+            remaining -= chunk.getValue().cardinality;
+        }
+        return new Indexes(chunks, null, 0, 0);
+    }
+
+    /**
+     * @param index the index to start from, inclusive, whether or not it is in this bitmap
+     * @return an iterator over the indexes in this bitmap from the given one, in ascending order
+     */
+    public PrimitiveIterator.OfInt iteratorFrom(int index) {
+        char high = (char) (index >>> 16), low = (char) index;
+        Iterator<Map.Entry<Character, Container>> chunks = containers.tailMap(high, true).entrySet().iterator();
+        if (!chunks.hasNext()) {
+            return new Indexes(chunks, null, 0, 0);
+        }
+        Map.Entry<Character, Container> chunk = chunks.next();
+        if (chunk.getKey() != high) {
+            return new Indexes(chunks, chunk, 0, 0);
+        }
+        return new Indexes(chunks, chunk, chunk.getValue().rank(low), low);
+    }
+}
@@ -28,7 +28,10 @@ import org.fenixedu.bennu.io.domain.GenericFile;
 import pt.ist.fenixframework.Atomic;
 import pt.ist.fenixframework.Atomic.TxMode;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -39,14 +42,18 @@ import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import org.fenixedu.bennu.MessagingConfiguration;
 import org.fenixedu.bennu.core.domain.User;
 import org.fenixedu.bennu.core.domain.groups.PersistentGroup;
 import org.fenixedu.bennu.core.groups.Group;
 import org.fenixedu.bennu.core.security.Authenticate;
+import org.fenixedu.bennu.core.signals.DomainObjectEvent;
+import org.fenixedu.bennu.core.signals.Signal;
 import org.fenixedu.commons.i18n.I18N;
 import org.fenixedu.commons.i18n.LocalizedString;
 import org.fenixedu.messaging.core.domain.MessagingSystem.Util;
 import org.fenixedu.messaging.core.template.DeclareMessageTemplate;
+import org.fenixedu.messaging.core.template.RecipientParameters;
 import org.fenixedu.messaging.core.template.TemplateParameter;
 import org.joda.time.DateTime;
 
@@ -94,9 +101,31 @@ public final class Message extends Message_Base implements Comparable<Message> {
             messageBuilder.htmlBody(template.getCompiledHtmlBody(params));
             return messageBuilder;
         }
+
+        /**
+         * Stores the template itself in the message, to be rendered for each recipient as it is delivered, with the
+         * parameters given for that recipient by the provider registered under the given key. The message is stored once
+         * regardless of the number of recipients. The parameters given to this builder render the subject and bodies kept
+         * for display, such as in the sent messages of a sender, and may be sample values.
+         *
+         * @see MessageTemplate#registerRecipientParameters(String, RecipientParameters)
+         */
+        public MessageBuilder personalized(String recipientParameters) {
+            if (MessageTemplate.getRecipientParameters(recipientParameters) == null) {
+                throw new IllegalArgumentException("Unknown recipient parameters key.");
+            }
+            and();
+            messageBuilder.personalization = recipientParameters;
+            messageBuilder.subjectTemplate = template.getSubject();
+            messageBuilder.textBodyTemplate = template.getTextBody();
+            messageBuilder.htmlBodyTemplate = template.getHtmlBody();
+            return messageBuilder;
+        }
     }
 
-    @DeclareMessageTemplate(id = "org.fenixedu.messaging.message.wrapper",
+    private static final String WRAPPER = "org.fenixedu.messaging.message.wrapper";
+
+    @DeclareMessageTemplate(id = WRAPPER,
             description = "message.template.message.wrapper.description", subject = "message.template.message.wrapper.subject",
             text = "message.template.message.wrapper.text", html = "message.template.message.wrapper.html", parameters = {
             @TemplateParameter(id = "sender", description = "message.template.message.wrapper.parameter.sender"),
@@ -124,6 +153,9 @@ public final class Message extends Message_Base implements Comparable<Message> {
         private Set<String> singleBccs = new HashSet<>();
         private Set<GenericFile> files = new HashSet<>();
         private Set<String> singleTos = new HashSet<>();
+        private MessagePriority priority = null;
+        private String personalization = null;
+        private LocalizedString subjectTemplate = null, textBodyTemplate = null, htmlBodyTemplate = null;
 
         protected MessageBuilder(Sender sender) {
             from(sender);
@@ -134,6 +166,15 @@ public final class Message extends Message_Base implements Comparable<Message> {
             return this;
         }
 
+        /**
+         * Sets the lane in which the message is dispatched and delivered. If not set, it depends on the sender, see
+         * {@link MessagePriority#defaultFor(Sender)}.
+         */
+        public MessageBuilder priority(MessagePriority priority) {
+            this.priority = requireNonNull(priority);
+            return this;
+        }
+
         public MessageBuilder wrapped() {
             wrapped = true;
             return this;
@@ -338,24 +379,30 @@ public final class Message extends Message_Base implements Comparable<Message> {
             message.setSender(sender);
             message.setReplyTo(Strings.emptyToNull(Util.toEmailListString(replyTo)));
             message.setPreferredLocale(preferredLocale);
+            message.setPriority(priority != null ? priority : MessagePriority.defaultFor(sender));
+            message.setPersonalization(personalization);
             tos.stream().map(Group::toPersistentGroup).forEach(message::addTo);
             ccs.stream().map(Group::toPersistentGroup).forEach(message::addCc);
             bccs.stream().map(Group::toPersistentGroup).forEach(message::addBcc);
             message.setSingleBccs(Strings.emptyToNull(Util.toEmailListString(singleBccs)));
             message.setSingleTos(Strings.emptyToNull(Util.toEmailListString(singleTos)));
             if (wrapped) {
-                template("org.fenixedu.messaging.message.wrapper").parameter("sender", sender)
-                        .parameter("creator", Authenticate.getUser()).parameter("replyTo", replyTo)
-                        .parameter("preferredLocale", preferredLocale).parameter("subject", subject)
-                        .parameter("textBody", textBody).parameter("htmlBody", htmlBody).parameter("tos", newArrayList(tos))
-                        .parameter("ccs", newArrayList(ccs)).parameter("bccs", newArrayList(bccs))
-                        .parameter("singleBccs", newArrayList(singleBccs))
-                        .parameter("singleTos", newArrayList(singleTos)).and();
+                if (personalization != null) {
+                    // rendered for each recipient, within the wrapper as it is when delivered
+                    message.setWrapper(WRAPPER);
+                }
+                TemplateMessageBuilder wrapper = template(WRAPPER);
+                message.wrapperParameters(subject, textBody, htmlBody).forEach(wrapper::parameter);
+                wrapper.and();
             }
             files.forEach(message::addFile);
             message.setSubject(subject);
             message.setTextBody(textBody);
             message.setHtmlBody(htmlBody);
+            message.setSubjectTemplate(subjectTemplate);
+            message.setTextBodyTemplate(textBodyTemplate);
+            message.setHtmlBodyTemplate(htmlBodyTemplate);
+            Signal.emit(MessagingConfiguration.MESSAGE_SENT, new DomainObjectEvent<>(message));
             return message;
         }
     }
@@ -395,6 +442,98 @@ public final class Message extends Message_Base implements Comparable<Message> {
         return super.getCreated();
     }
 
+    /**
+     * @return whether this message is rendered for each recipient as it is delivered, from its templates rather than
+     *         from its subject and bodies, which are only kept for display
+     */
+    public boolean isPersonalized() {
+        return getPersonalization() != null;
+    }
+
+    /**
+     * @return the provider of the parameters of each recipient of this personalized message
+     * @throws IllegalStateException if no provider is registered on this server under the key the message refers to, in
+     *             which case this server cannot deliver it
+     */
+    public RecipientParameters getRecipientParameters() {
+        RecipientParameters provider = MessageTemplate.getRecipientParameters(getPersonalization());
+        if (provider == null) {
+            throw new IllegalStateException("No recipient parameters registered as " + getPersonalization()
+                    + " on this server, personalized message " + getExternalId() + " cannot be delivered by it");
+        }
+        return provider;
+    }
+
+    /**
+     * @return the parameters to render this personalized message with for the given recipient
+     */
+    public Map<String, Object> getRecipientParameters(String address) {
+        return getRecipientParameters().parametersFor(this, address);
+    }
+
+    /**
+     * Renders this personalized message for a recipient. If the message is wrapped, its subject and bodies are rendered
+     * first, and then given to the wrapper template as its parameters, as they are when a message is not personalized.
+     */
+    public void render(Map<String, Object> parameters, Locale locale, Writer subject, Writer textBody, Writer htmlBody)
+            throws IOException {
+        String renderedSubject = render(MessageTemplate.Part.SUBJECT, getSubjectTemplate(), parameters, locale);
+        String renderedTextBody = render(MessageTemplate.Part.TEXT_BODY, getTextBodyTemplate(), parameters, locale);
+        String renderedHtmlBody = render(MessageTemplate.Part.HTML_BODY, getHtmlBodyTemplate(), parameters, locale);
+        if (getWrapper() == null) {
+            subject.write(renderedSubject);
+            textBody.write(renderedTextBody);
+            htmlBody.write(renderedHtmlBody);
+            return;
+        }
+        MessageTemplate wrapper = MessageTemplate.get(getWrapper());
+        if (wrapper == null) {
+            throw new IllegalStateException("No message template " + getWrapper() + " to wrap message " + getExternalId());
+        }
+        Map<String, Object> wrapperParameters = wrapperParameters(new LocalizedString(locale, renderedSubject),
+                new LocalizedString(locale, renderedTextBody), new LocalizedString(locale, renderedHtmlBody));
+        wrapper.render(MessageTemplate.Part.SUBJECT, wrapperParameters, locale, subject);
+        wrapper.render(MessageTemplate.Part.TEXT_BODY, wrapperParameters, locale, textBody);
+        wrapper.render(MessageTemplate.Part.HTML_BODY, wrapperParameters, locale, htmlBody);
+    }
+
+    /* Templates are compiled once per server, keyed by the message, whose content never changes. */
+    private String render(MessageTemplate.Part part, LocalizedString template, Map<String, Object> parameters, Locale locale)
+            throws IOException {
+        String source = MessageTemplate.content(template, locale);
+        if (Strings.isNullOrEmpty(source)) {
+            return "";
+        }
+        try (StringWriter writer = new StringWriter()) {
+            MessageTemplate.evaluate("message:" + getExternalId(), part, 0, source, locale, parameters, writer);
+            return writer.toString();
+        }
+    }
+
+    private Map<String, Object> wrapperParameters(LocalizedString subject, LocalizedString textBody,
+            LocalizedString htmlBody) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("sender", getSender());
+        parameters.put("creator", getCreator());
+        parameters.put("replyTo", getReplyTosSet());
+        parameters.put("preferredLocale", getPreferredLocale());
+        parameters.put("subject", subject);
+        parameters.put("textBody", textBody);
+        parameters.put("htmlBody", htmlBody);
+        parameters.put("tos", newArrayList(getToGroups()));
+        parameters.put("ccs", newArrayList(getCcGroups()));
+        parameters.put("bccs", newArrayList(getBccGroups()));
+        parameters.put("singleBccs", newArrayList(getSingleBccsSet()));
+        parameters.put("singleTos", newArrayList(getSingleTosSet()));
+        return parameters;
+    }
+
+    @Override
+    public MessagePriority getPriority() {
+        // messages sent before priorities existed are in the normal lane
+        return super.getPriority() != null ? super.getPriority() : MessagePriority.NORMAL;
+    }
+
     @Override
     public String getReplyTo() {
         // FIXME remove when the framework supports read-only properties
@@ -0,0 +1,34 @@
+package org.fenixedu.messaging.core.domain;
+
+import java.util.Comparator;
+
+import org.fenixedu.bennu.MessagingConfiguration;
+import org.joda.time.DateTime;
+
+/**
+ * Lanes in which messages are dispatched and delivered, higher lanes first. To keep bulk traffic from starving, each
+ * lane below the top one only delays a message by a fixed amount of time, so a message that has waited long enough is
+ * served before newer messages of higher lanes.
+ */
+public enum MessagePriority {
+    HIGH, NORMAL, LOW;
+
+    private static final long AGING = MessagingConfiguration.getConfiguration().priorityAgingMinutes() * 60000L;
+
+    public static MessagePriority defaultFor(Sender sender) {
+        return sender.equals(MessagingSystem.systemSender()) ? HIGH : NORMAL;
+    }
+
+    /**
+     * @param since the instant from which the waiting time is counted
+     * @return the instant, in milliseconds, at which an item of this lane is due. Items are served by ascending deadline.
+     */
+    public long deadline(long since) {
+        return since + ordinal() * AGING;
+    }
+
+    public static Comparator<Message> dispatchOrder() {
+        return Comparator.comparingLong((Message message) -> message.getPriority().deadline(message.getCreated().getMillis()))
+                .thenComparing(Message::getExternalId);
+    }
+}
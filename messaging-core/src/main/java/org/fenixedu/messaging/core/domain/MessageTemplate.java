@@ -5,12 +5,18 @@ import pt.ist.fenixframework.Atomic;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -19,20 +25,29 @@ import org.fenixedu.commons.i18n.I18N;
 import org.fenixedu.commons.i18n.LocalizedString;
 import org.fenixedu.messaging.core.exception.MessagingDomainException;
 import org.fenixedu.messaging.core.template.DeclareMessageTemplate;
+import org.fenixedu.messaging.core.template.RecipientParameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.mitchellbosecke.pebble.PebbleEngine;
 import com.mitchellbosecke.pebble.PebbleEngine.Builder;
 import com.mitchellbosecke.pebble.error.PebbleException;
 import com.mitchellbosecke.pebble.loader.StringLoader;
+import com.mitchellbosecke.pebble.template.PebbleTemplate;
 
 import static java.util.Objects.requireNonNull;
 import static pt.ist.fenixframework.FenixFramework.atomic;
 
 public class MessageTemplate extends MessageTemplate_Base implements Comparable<MessageTemplate> {
+    private static final Logger logger = LoggerFactory.getLogger(MessageTemplate.class);
     private static final HashMap<String, DeclareMessageTemplate> declareAnnotations = Maps.newHashMap();
     private static final HashMap<String, MessageTemplateDeclaration> declarations = Maps.newHashMap();
     private static final PebbleEngine engine;
@@ -40,11 +55,66 @@ public class MessageTemplate extends MessageTemplate_Base implements Comparable<
     static {
         final Builder builder = new PebbleEngine.Builder();
         builder.loader(new StringLoader());
-        engine = builder.autoEscaping(false)
+        // templates are cached by version below, the engine would key them by their whole content and never evict them
+        engine = builder.autoEscaping(false).cacheActive(false)
                 .newLineTrimming(MessagingConfiguration.getConfiguration().pebbleNewlineTrim())
                 .build();
     }
 
+    enum Part {
+        SUBJECT, TEXT_BODY, HTML_BODY
+    }
+
+    private static final class CompiledKey {
+        private final String id;
+        private final Part part;
+        private final Locale locale;
+        private final int version;
+
+        private CompiledKey(String id, Part part, Locale locale, int version) {
+            this.id = id;
+            this.part = part;
+            this.locale = locale;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CompiledKey)) {
+                return false;
+            }
+            CompiledKey key = (CompiledKey) o;
+            return version == key.version && part == key.part && id.equals(key.id) && locale.equals(key.locale);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, part, locale, version);
+        }
+    }
+
+    /* Compiled templates by template, part, locale and content version, which changes whenever the content is set, so
+     * that edits made on other servers are never served stale. */
+    private static final Cache<CompiledKey, PebbleTemplate> compiled =
+            CacheBuilder.newBuilder().maximumSize(MessagingConfiguration.getConfiguration().templateCacheSize()).recordStats()
+                    .build();
+
+    /* Templates by id. An entry may have been put by a transaction that did not commit, or deleted since, so it is only
+     * used while the template set, as read by the current transaction, holds it. A missing entry falls back to the
+     * template set, so templates created on other servers are found. */
+    private static final ConcurrentMap<String, MessageTemplate> byId = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, RecipientParameters> recipientParameters = new ConcurrentHashMap<>();
+
+    /**
+     * @return the hit and miss counts of the compiled template cache
+     */
+    public static CacheStats getCompiledTemplateStats() {
+        return compiled.stats();
+    }
+
     public static class MessageTemplateDeclaration {
 
         private LocalizedString description, defaultSubject, defaultTextBody, defaultHtmlBody;
@@ -97,6 +167,7 @@ public class MessageTemplate extends MessageTemplate_Base implements Comparable<
         setId(declaration.id());
         declarations.put(getId(), new MessageTemplateDeclaration(declaration));
         reset();
+        byId.put(getId(), this);
     }
 
     @Override
@@ -119,30 +190,135 @@ public class MessageTemplate extends MessageTemplate_Base implements Comparable<
     }
 
     public LocalizedString getCompiledSubject(Map<String, Object> context) {
-        return compile(getId(), getSubject(), context);
+        return compile(Part.SUBJECT, getSubject(), context);
     }
 
     public LocalizedString getCompiledTextBody(Map<String, Object> context) {
-        return compile(getId(), getTextBody(), context);
+        return compile(Part.TEXT_BODY, getTextBody(), context);
     }
 
     public LocalizedString getCompiledHtmlBody(Map<String, Object> context) {
-        return compile(getId(), getHtmlBody(), context);
+        return compile(Part.HTML_BODY, getHtmlBody(), context);
     }
 
-    private static LocalizedString compile(String id, LocalizedString template, Map<String, Object> context) {
+    private LocalizedString compile(Part part, LocalizedString template, Map<String, Object> context) {
         LocalizedString.Builder builder = new LocalizedString.Builder();
         for (Locale locale : template.getLocales()) {
             try (StringWriter writer = new StringWriter()) {
-                engine.getTemplate(template.getContent(locale)).evaluate(writer, context, locale);
+                evaluate(getId(), part, getContentVersion(), template.getContent(locale), locale, context, writer);
                 builder.with(locale, writer.toString());
-            } catch (PebbleException | IOException e) {
-                throw MessagingDomainException.malformedTemplate(e, id);
+            } catch (IOException e) {
+                throw MessagingDomainException.malformedTemplate(e, getId());
             }
         }
         return builder.build();
     }
 
+    /**
+     * Evaluates a template source into the given writer, compiling it only if it is not cached for the given id, part,
+     * locale and version yet.
+     */
+    static void evaluate(String id, Part part, int version, String source, Locale locale, Map<String, Object> context,
+            Writer writer) throws IOException {
+        try {
+            compiled.get(new CompiledKey(id, part, locale, version), () -> engine.getTemplate(source))
+                    .evaluate(writer, context, locale);
+        } catch (ExecutionException | UncheckedExecutionException | PebbleException e) {
+            Exception cause = e.getCause() instanceof PebbleException ? (PebbleException) e.getCause() : e;
+            throw MessagingDomainException.malformedTemplate(cause, id);
+        }
+    }
+
+    /* Renders a part of this template in the given locale, see content(LocalizedString, Locale). */
+    void render(Part part, Map<String, Object> context, Locale locale, Writer writer) throws IOException {
+        LocalizedString template =
+                part == Part.SUBJECT ? getSubject() : part == Part.TEXT_BODY ? getTextBody() : getHtmlBody();
+        String source = content(template, locale);
+        if (!Strings.isNullOrEmpty(source)) {
+            evaluate(getId(), part, getContentVersion(), source, locale, context, writer);
+        }
+    }
+
+    /**
+     * @return the content of a template in the given locale, or in its default locale if it has none in that one
+     */
+    static String content(LocalizedString template, Locale locale) {
+        String content = template == null ? null : template.getContent(locale);
+        return content == null && template != null ? template.getContent() : content;
+    }
+
+    /**
+     * Registers the provider of recipient parameters that personalized messages refer to by the given key. Must be done
+     * on every server that delivers messages, before they are delivered: a server without it fails every attempt to
+     * deliver them, which are retried as any other failed attempt.
+     */
+    public static void registerRecipientParameters(String key, RecipientParameters parameters) {
+        recipientParameters.put(requireNonNull(key), requireNonNull(parameters));
+    }
+
+    public static RecipientParameters getRecipientParameters(String key) {
+        return recipientParameters.get(key);
+    }
+
+    /* Must be called whenever the content changes. Entries of older versions would only be evicted by size otherwise. */
+    private void contentChanged() {
+        setContentVersion(getContentVersion() + 1);
+        compiled.asMap().keySet().removeIf(key -> key.id.equals(getId()));
+    }
+
+    private static final class Compilation {
+        private final CompiledKey key;
+        private final String source;
+
+        private Compilation(CompiledKey key, String source) {
+            this.key = key;
+            this.source = source;
+        }
+    }
+
+    /**
+     * Compiles every template in every locale into the compiled template cache, in parallel, so that the first messages
+     * do not pay for it and malformed templates are reported at startup instead of when a message is sent.
+     *
+     * @return the ids of the templates that did not compile
+     */
+    public static Set<String> precompile() {
+        long start = System.currentTimeMillis();
+        // creates the templates of declarations not stored yet
+        MessagingSystem.getInstance();
+        List<Compilation> compilations = compilations();
+        Set<String> failed = ConcurrentHashMap.newKeySet();
+        compilations.parallelStream().forEach(compilation -> {
+            try {
+                compiled.get(compilation.key, () -> engine.getTemplate(compilation.source));
+            } catch (ExecutionException | UncheckedExecutionException e) {
+                failed.add(compilation.key.id);
+                logger.error("Message template {} does not compile for {} {}", compilation.key.id, compilation.key.locale,
+                        compilation.key.part, e.getCause());
+            }
+        });
+        logger.info("Precompiled {} message templates in {} variants in {}ms, {} failed",
+                compilations.stream().map(c -> c.key.id).distinct().count(), compilations.size(),
+                System.currentTimeMillis() - start, failed.size());
+        return failed;
+    }
+
+    @Atomic(mode = Atomic.TxMode.READ)
+    private static List<Compilation> compilations() {
+        List<Compilation> compilations = new ArrayList<>();
+        for (MessageTemplate template : MessagingSystem.getInstance().getTemplateSet()) {
+            for (Part part : Part.values()) {
+                LocalizedString content = part == Part.SUBJECT ? template.getSubject() : part == Part.TEXT_BODY ? template
+                        .getTextBody() : template.getHtmlBody();
+                for (Locale locale : content.getLocales()) {
+                    CompiledKey key = new CompiledKey(template.getId(), part, locale, template.getContentVersion());
+                    compilations.add(new Compilation(key, content.getContent(locale)));
+                }
+            }
+        }
+        return compilations;
+    }
+
     public static Set<MessageTemplate> all() {
         return Sets.newHashSet(MessagingSystem.getInstance().getTemplateSet());
     }
@@ -152,7 +328,18 @@ public class MessageTemplate extends MessageTemplate_Base implements Comparable<
     }
 
     public static MessageTemplate get(String id) {
-        return MessagingSystem.getInstance().getTemplateSet().stream().filter(t -> t.getId().equals(id)).findFirst().orElse(null);
+        MessageTemplate template = byId.get(id);
+        Set<MessageTemplate> templates = MessagingSystem.getInstance().getTemplateSet();
+        if (template != null && templates.contains(template)) {
+            return template;
+        }
+        template = templates.stream().filter(t -> t.getId().equals(id)).findFirst().orElse(null);
+        if (template != null) {
+            byId.put(id, template);
+        } else {
+            byId.remove(id);
+        }
+        return template;
     }
 
     public static void declare(DeclareMessageTemplate decl) {
@@ -161,6 +348,7 @@ public class MessageTemplate extends MessageTemplate_Base implements Comparable<
 
     public static void reifyDeclarations() {
         all().forEach(t -> {
+            byId.putIfAbsent(t.getId(), t);
             declareAnnotations.computeIfPresent(t.getId(), (id, declaration) -> {
                 declarations.put(id, new MessageTemplateDeclaration(declaration));
                 return null;
@@ -184,20 +372,24 @@ public class MessageTemplate extends MessageTemplate_Base implements Comparable<
     @Override
     public void setSubject(LocalizedString subject) {
         super.setSubject(requireNonNull(subject));
+        contentChanged();
     }
 
     @Override
     public void setTextBody(LocalizedString textBody) {
         super.setTextBody(requireNonNull(textBody));
+        contentChanged();
     }
 
     @Override
     public void setHtmlBody(LocalizedString htmlBody) {
         super.setHtmlBody(requireNonNull(htmlBody));
+        contentChanged();
     }
 
     @Atomic
     public void delete() {
+        byId.remove(getId(), this);
         setMessagingSystem(null);
         deleteDomainObject();
     }
@@ -32,6 +32,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -39,12 +40,16 @@ import java.util.stream.Stream;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 
+import org.fenixedu.bennu.MessagingConfiguration;
 import org.fenixedu.bennu.core.domain.Bennu;
 import org.fenixedu.bennu.core.domain.User;
 import org.fenixedu.bennu.core.domain.UserProfile;
 import org.fenixedu.bennu.core.domain.groups.PersistentGroup;
 import org.fenixedu.bennu.core.groups.Group;
+import org.fenixedu.bennu.core.signals.Signal;
 import org.fenixedu.messaging.core.dispatch.MessageDispatcher;
+import org.fenixedu.messaging.core.dispatch.OptInIndex;
+import org.fenixedu.messaging.core.ui.OptOutUpdateEvent;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
@@ -74,6 +79,11 @@ public class MessagingSystem extends MessagingSystem_Base {
                     .members(Group.parse(defaultSystemSenderMembers)).recipients(Group.anyone()).build();
             instance.setSystemSender(sender);
         }
+        if (instance.getPersistentOptedOutGroup() != null) {
+            // users who opted out before the registry existed
+            OptOutShard.replace(instance, instance.getPersistentOptedOutGroup().getMembers());
+            instance.setPersistentOptedOutGroup(null);
+        }
 
         MessageTemplate.reifyDeclarations();
     }
@@ -88,7 +98,8 @@ public class MessagingSystem extends MessagingSystem_Base {
     @Atomic(mode = TxMode.WRITE)
     public static MessageDispatchReport dispatch(Message message) {
         MessageDispatchReport report = null;
-        if (dispatcher != null) {
+        // a message may be dispatched both as soon as it is sent and by the periodic task, only the first one counts
+        if (dispatcher != null && message.getMessagingSystemFromPendingDispatch() != null) {
             report = dispatcher.dispatch(message);
             if (report != null) {
                 message.setMessagingSystemFromPendingDispatch(null);
@@ -115,12 +126,18 @@ public class MessagingSystem extends MessagingSystem_Base {
         return getInstance().getSystemSender();
     }
 
+    /* Stamps are random instead of counters, so they are written without being read, and concurrent changes of the opt
+     * outs or of the opted in users of a sender do not conflict over them. */
+    static long newStamp() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
     public boolean isOptOutAvailable(User user){
         return getOptOutAvailable().isMember(user);
     }
 
     public boolean isOptedOut(User user){
-        return getOptedOutGroup().isMember(user);
+        return OptInIndex.getInstance().isOptedOut(user);
     }
 
     public boolean isOptedIn(User user){
@@ -134,10 +151,6 @@ public class MessagingSystem extends MessagingSystem_Base {
         return persistentGroup.toGroup();
     }
 
-    public Group getOptedOutGroup() {
-        return getOptSomethingGroup(getPersistentOptedOutGroup());
-    }
-
     public Group getOptOutAvailable() {
         return getOptSomethingGroup(getPersistentOptOutAvailableGroup());
     }
@@ -146,19 +159,34 @@ public class MessagingSystem extends MessagingSystem_Base {
         setPersistentOptOutAvailableGroup(group == null ? null : group.toPersistentGroup());
     }
 
+    /**
+     * Replaces the opt out registry with the given users, which must be listed explicitly, as by {@link Group#users}. The
+     * registry only holds users, so a group defined by an expression cannot be kept in it and is refused.
+     *
+     * @deprecated use {@link #optOut(User)} and {@link #optIn(User)}. To opt out the members of a dynamic group, call
+     *             {@link #optOut(User)} for each of them, and again for those who join it later.
+     */
+    @Deprecated
     public void setOptedOutGroup(Group group){
-        setPersistentOptedOutGroup(group == null ? null : group.toPersistentGroup());
+        User[] users = group == null ? new User[0] : group.getMembers().toArray(User[]::new);
+        if (group != null && !group.equals(Group.nobody()) && !group.equals(Group.users(users))) {
+            throw new IllegalArgumentException("Only groups of explicit users can replace the opt out registry.");
+        }
+        OptOutShard.replace(this, Stream.of(users));
+        Signal.emit(MessagingConfiguration.OPTOUT_STATUS_UPDATE, new OptOutUpdateEvent(null, false));
     }
 
     public void optOut(User user){
         if (user != null){
-            setOptedOutGroup(getOptedOutGroup().grant(user));
+            OptOutShard.toggle(this, user, true);
+            Signal.emit(MessagingConfiguration.OPTOUT_STATUS_UPDATE, new OptOutUpdateEvent(user, true));
         }
     }
 
     public void optIn(User user){
         if (user != null){
-            setOptedOutGroup(getOptedOutGroup().revoke(user));
+            OptOutShard.toggle(this, user, false);
+            Signal.emit(MessagingConfiguration.OPTOUT_STATUS_UPDATE, new OptOutUpdateEvent(user, false));
         }
     }
 
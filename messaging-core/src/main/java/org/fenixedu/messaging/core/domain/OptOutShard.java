@@ -0,0 +1,108 @@
+package org.fenixedu.messaging.core.domain;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+
+import org.fenixedu.bennu.core.domain.User;
+import org.fenixedu.messaging.core.dispatch.UserBitmap;
+
+/**
+ * Range of the opt out registry, holding whether each user of the range opted out as one bit of a fixed size bitmap.
+ * Users are assigned to ranges by their {@link UserBitmap} index, so opting a user in or out rewrites a single small shard
+ * and only conflicts with users of the same range, instead of composing a new opted out group on every toggle.
+ */
+public class OptOutShard extends OptOutShard_Base {
+    private static final int RANGE_BITS = 10, RANGE_SIZE = 1 << RANGE_BITS;
+
+    private OptOutShard(MessagingSystem system, int range) {
+        super();
+        setMessagingSystem(system);
+        setRange(range);
+        setMembers(new byte[RANGE_SIZE / 8]);
+    }
+
+    /* Shards by range as last seen by this node. An entry is only used once the registry of the current transaction is found
+     * to still hold it, since one created by a transaction that is restarted or aborted would never exist. */
+    private static final ConcurrentMap<Integer, OptOutShard> byRange = new ConcurrentHashMap<>();
+
+    /* Looks the shard of a range up without reading every shard of the registry, which is only scanned when this node does
+     * not know the shard yet, once per range. */
+    private static OptOutShard shard(MessagingSystem system, int range) {
+        OptOutShard shard = byRange.get(range);
+        Set<OptOutShard> registry = system.getOptOutShardSet();
+        if (shard != null && registry.contains(shard)) {
+            return shard;
+        }
+        shard = registry.stream().filter(s -> s.getRange() == range).findFirst().orElse(null);
+        if (shard != null) {
+            byRange.put(range, shard);
+        } else {
+            byRange.remove(range);
+        }
+        return shard;
+    }
+
+    /**
+     * Sets whether the given user opted out. Must run in a write transaction.
+     */
+    static void toggle(MessagingSystem system, User user, boolean optedOut) {
+        toggle(system, UserBitmap.indexOf(user), optedOut, range -> shard(system, range));
+    }
+
+    private static void toggle(MessagingSystem system, int index, boolean optedOut, IntFunction<OptOutShard> shards) {
+        int range = index >>> RANGE_BITS;
+        OptOutShard shard = shards.apply(range);
+        if (shard == null) {
+            if (!optedOut) {
+                return;
+            }
+            // concurrent creations of the same range conflict on the registry, and the retried one finds the shard
+            shard = new OptOutShard(system, range);
+        }
+        byte[] members = shard.getMembers();
+        int i = (index & RANGE_SIZE - 1) >>> 3, bit = 1 << (index & 7);
+        if ((members[i] & bit) != 0 != optedOut) {
+            // stored values must not be changed in place
+            members = members.clone();
+            members[i] ^= bit;
+            shard.setMembers(members);
+            system.setOptOutStamp(MessagingSystem.newStamp());
+        }
+    }
+
+    /**
+     * Replaces the contents of the registry with the given users. Must run in a write transaction.
+     */
+    static void replace(MessagingSystem system, Stream<User> users) {
+        byte[] empty = new byte[RANGE_SIZE / 8];
+        system.getOptOutShardSet().forEach(shard -> shard.setMembers(empty));
+        system.setOptOutStamp(MessagingSystem.newStamp());
+        // every shard is read anyway, so they are all looked up at once, along with those created on the way
+        Map<Integer, OptOutShard> shards = new HashMap<>();
+        system.getOptOutShardSet().forEach(shard -> shards.put(shard.getRange(), shard));
+        users.forEach(user -> toggle(system, UserBitmap.indexOf(user), true,
+                range -> shards.computeIfAbsent(range, r -> new OptOutShard(system, r))));
+    }
+
+    /**
+     * @return all the users in the registry, read shard by shard. Must run in a transaction.
+     */
+    public static UserBitmap export(MessagingSystem system) {
+        UserBitmap users = new UserBitmap();
+        for (OptOutShard shard : system.getOptOutShardSet()) {
+            byte[] members = shard.getMembers();
+            int base = shard.getRange() << RANGE_BITS;
+            for (int i = 0; i < members.length; i++) {
+                for (int bits = members[i] & 0xFF; bits != 0; bits &= bits - 1) {
+                    users.add(base | i << 3 | Integer.numberOfTrailingZeros(bits));
+                }
+            }
+        }
+        return users;
+    }
+}
@@ -246,6 +246,7 @@ public class Sender extends Sender_Base implements Comparable<Sender> {
     public void addOptedInUser(User user) {
         if (!getOptedInUsers().contains(user)) {
             super.addOptedInUser(user);
+            setOptInStamp(MessagingSystem.newStamp());
             if (!getInvitedUsers().contains(user)){
                 super.addInvitedUser(user);
             }
@@ -255,6 +256,7 @@ public class Sender extends Sender_Base implements Comparable<Sender> {
     public void removeOptedInUser(User user){
         if (getOptedInUsers().contains(user)){
             super.removeOptedInUser(user);
+            setOptInStamp(MessagingSystem.newStamp());
         }
     }
 
@@ -4,10 +4,13 @@ import org.fenixedu.bennu.scheduler.CronTask;
 import org.fenixedu.bennu.scheduler.annotation.Task;
 import org.fenixedu.messaging.core.domain.Message;
 import org.fenixedu.messaging.core.domain.MessageDispatchReport;
+import org.fenixedu.messaging.core.domain.MessagePriority;
 import org.fenixedu.messaging.core.domain.MessagingSystem;
 import org.fenixedu.messaging.core.domain.Sender;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 @Task(englishTitle = "Message Task", readOnly = true)
@@ -16,7 +19,10 @@ public class MessageTask extends CronTask {
     public void runTask() {
         Set<Sender> sendersFromMessages = new HashSet<>();
         int dispatched = 0;
-        for (final Message message : MessagingSystem.getPendingMessages()) {
+        // higher priority lanes first, older messages eventually overtaking newer ones of higher lanes
+        List<Message> pending = new ArrayList<>(MessagingSystem.getPendingMessages());
+        pending.sort(MessagePriority.dispatchOrder());
+        for (final Message message : pending) {
             long start = System.currentTimeMillis();
             MessageDispatchReport report = MessagingSystem.dispatch(message);
             if (report != null) {
@@ -5,9 +5,12 @@ import java.util.Set;
 
 import javax.servlet.ServletContainerInitializer;
 import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.HandlesTypes;
 
+import org.fenixedu.bennu.MessagingConfiguration;
 import org.fenixedu.messaging.core.domain.MessageTemplate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,5 +27,21 @@ public class MessageTemplateDeclarationInitializer implements ServletContainerIn
             classes.stream().flatMap(c -> Arrays.stream(c.getAnnotationsByType(DeclareMessageTemplate.class)))
                     .forEach(MessageTemplate::declare);
         }
+        if (MessagingConfiguration.getConfiguration().templatePrecompile()) {
+            // listeners added here are notified after the declared ones, once the domain is initialized
+            ctx.addListener(new ServletContextListener() {
+                @Override
+                public void contextInitialized(ServletContextEvent sce) {
+                    Set<String> failed = MessageTemplate.precompile();
+                    if (!failed.isEmpty() && MessagingConfiguration.getConfiguration().templatePrecompileStrict()) {
+                        throw new IllegalStateException("Malformed message templates: " + failed);
+                    }
+                }
+
+                @Override
+                public void contextDestroyed(ServletContextEvent sce) {
+                }
+            });
+        }
     }
 }
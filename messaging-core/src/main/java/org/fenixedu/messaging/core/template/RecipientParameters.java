@@ -0,0 +1,23 @@
+package org.fenixedu.messaging.core.template;
+
+import java.util.Map;
+
+import org.fenixedu.messaging.core.domain.Message;
+import org.fenixedu.messaging.core.domain.MessageTemplate;
+
+/**
+ * Template parameters of each recipient of a personalized message, see
+ * {@link Message.TemplateMessageBuilder#personalized(String)}. Messages refer to a provider by the key it was registered
+ * under with {@link MessageTemplate#registerRecipientParameters(String, RecipientParameters)}, and it is called in a
+ * read-only transaction while the message is being delivered.
+ */
+@FunctionalInterface
+public interface RecipientParameters {
+
+    /**
+     * @param message the message being delivered
+     * @param address the address of the recipient, which identifies users through their profile email
+     * @return the parameters to render the message with for the given recipient
+     */
+    Map<String, Object> parametersFor(Message message, String address);
+}
@@ -39,11 +39,11 @@ public class OptInConfigController {
                 .forEach(sender -> optInRequiredSenders.put(sender, sender.getOptedInUsers().contains(Authenticate.getUser())));
 
         final boolean canConfigOptOut = MessagingSystem.getInstance().getOptOutAvailable().isMember(Authenticate.getUser()) ||
-                MessagingSystem.getInstance().getOptedOutGroup().isMember(Authenticate.getUser());
+                MessagingSystem.getInstance().isOptedOut(Authenticate.getUser());
         
         model.addAttribute("canConfigOptOut", canConfigOptOut);
         if (canConfigOptOut) {
-            model.addAttribute("isOptedOut", MessagingSystem.getInstance().getOptedOutGroup().isMember(Authenticate.getUser()));
+            model.addAttribute("isOptedOut", MessagingSystem.getInstance().isOptedOut(Authenticate.getUser()));
         }
 
         model.addAttribute("optInRequiredSenders", optInRequiredSenders);
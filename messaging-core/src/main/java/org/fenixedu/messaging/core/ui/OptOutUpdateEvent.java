@@ -0,0 +1,32 @@
+package org.fenixedu.messaging.core.ui;
+
+import org.fenixedu.bennu.core.domain.User;
+
+public class OptOutUpdateEvent {
+    private User user;
+    private boolean newOptOutStatus;
+
+    /**
+     * @param user the user whose status changed, or null if the opted out group as a whole was replaced
+     */
+    public OptOutUpdateEvent(User user, boolean newOptOutStatus) {
+        this.user = user;
+        this.newOptOutStatus = newOptOutStatus;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public void setUser(User user) {
+        this.user = user;
+    }
+
+    public boolean isNewOptOutStatus() {
+        return newOptOutStatus;
+    }
+
+    public void setNewOptOutStatus(boolean newOptOutStatus) {
+        this.newOptOutStatus = newOptOutStatus;
+    }
+}
@@ -0,0 +1,174 @@
+package org.fenixedu.messaging.core.dispatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/* Works on indexes only, so that no users have to be created. */
+public class UserBitmapTest {
+
+    private static UserBitmap bitmap(Iterable<Integer> indexes) {
+        UserBitmap bitmap = new UserBitmap();
+        indexes.forEach(bitmap::add);
+        return bitmap;
+    }
+
+    /* Indexes spread over a few chunks, some sparse enough to be arrays and others dense enough to be bitmaps. */
+    private static TreeSet<Integer> random(Random random, int size) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        while (indexes.size() < size) {
+            int chunk = random.nextInt(4);
+            indexes.add(chunk << 16 | (chunk == 0 ? random.nextInt(1 << 16) : random.nextInt(3000)));
+        }
+        return indexes;
+    }
+
+    private static List<Integer> list(PrimitiveIterator.OfInt iterator) {
+        List<Integer> indexes = new ArrayList<>();
+        iterator.forEachRemaining((int index) -> indexes.add(index));
+        return indexes;
+    }
+
+    private static void assertBitmap(TreeSet<Integer> expected, UserBitmap actual) {
+        assertEquals(expected.size(), actual.cardinality());
+        assertEquals(expected.isEmpty(), actual.isEmpty());
+        assertEquals(new ArrayList<>(expected), list(actual.iterator(0)));
+    }
+
+    @Test
+    public void addAndContains() {
+        UserBitmap bitmap = new UserBitmap();
+        bitmap.add(5);
+        bitmap.add(5);
+        bitmap.add(70000);
+        assertTrue(bitmap.contains(5));
+        assertTrue(bitmap.contains(70000));
+        assertFalse(bitmap.contains(6));
+        assertFalse(bitmap.contains(5 | 1 << 16));
+        assertEquals(2, bitmap.cardinality());
+    }
+
+    @Test
+    public void denseChunksBecomeBitmaps() {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        for (int i = 0; i < 10000; i++) {
+            indexes.add(i * 3);
+        }
+        UserBitmap bitmap = bitmap(indexes);
+        assertBitmap(indexes, bitmap);
+        assertTrue(bitmap.contains(2997));
+        assertFalse(bitmap.contains(2998));
+    }
+
+    @Test
+    public void indexesAreUnsigned() {
+        TreeSet<Integer> expected = new TreeSet<>((a, b) -> Integer.compareUnsigned(a, b));
+        expected.add(1);
+        expected.add(-1);
+        expected.add(Integer.MIN_VALUE);
+        UserBitmap bitmap = bitmap(expected);
+        assertEquals(new ArrayList<>(expected), list(bitmap.iterator(0)));
+        assertTrue(bitmap.contains(-1));
+    }
+
+    @Test
+    public void algebra() {
+        Random random = new Random(7);
+        for (int run = 0; run < 20; run++) {
+            TreeSet<Integer> a = random(random, random.nextInt(20000)), b = random(random, random.nextInt(20000));
+            UserBitmap x = bitmap(a), y = bitmap(b);
+
+            TreeSet<Integer> or = new TreeSet<>(a), and = new TreeSet<>(a), andNot = new TreeSet<>(a);
+            or.addAll(b);
+            and.retainAll(b);
+            andNot.removeAll(b);
+            assertBitmap(or, x.or(y));
+            assertBitmap(and, x.and(y));
+            assertBitmap(andNot, x.andNot(y));
+
+            // operands are left unchanged
+            assertBitmap(a, x);
+            assertBitmap(b, y);
+        }
+    }
+
+    @Test
+    public void emptyResultsHaveNoChunks() {
+        TreeSet<Integer> indexes = random(new Random(7), 5000);
+        UserBitmap bitmap = bitmap(indexes);
+        assertTrue(bitmap.andNot(bitmap).isEmpty());
+        assertTrue(bitmap.and(new UserBitmap()).isEmpty());
+        assertBitmap(indexes, new UserBitmap().or(bitmap));
+    }
+
+    @Test
+    public void iteratorSkips() {
+        TreeSet<Integer> indexes = random(new Random(11), 15000);
+        List<Integer> expected = new ArrayList<>(indexes);
+        UserBitmap bitmap = bitmap(indexes);
+        for (int skip : new int[] { 0, 1, 100, 4095, 4096, 9999, 14999, 15000, 20000 }) {
+            assertEquals(expected.subList(Math.min(skip, expected.size()), expected.size()), list(bitmap.iterator(skip)));
+        }
+    }
+
+    @Test
+    public void iteratorFromIndex() {
+        TreeSet<Integer> indexes = random(new Random(13), 15000);
+        UserBitmap bitmap = bitmap(indexes);
+        Random random = new Random(17);
+        for (int run = 0; run < 50; run++) {
+            int from = random.nextInt(5 << 16);
+            assertEquals(new ArrayList<>(indexes.tailSet(from, true)), list(bitmap.iteratorFrom(from)));
+        }
+        assertEquals(new ArrayList<>(indexes), list(bitmap.iteratorFrom(0)));
+        int first = indexes.first();
+        assertEquals(first, bitmap.iteratorFrom(first).nextInt());
+    }
+
+    /* Role precedence and opt-in filtering on groups of the size the planner resolves, against the hash sets the bitmaps
+     * replaced, whose results had to be sorted to be walked in a stable order. */
+    @Test
+    public void rolesOfLargeGroups() {
+        Random random = new Random(7);
+        int users = 400000;
+        TreeSet<Integer> tos = random(random, 200000, users), ccs = random(random, 200000, users);
+        TreeSet<Integer> bccs = random(random, 200000, users), optedOut = random(random, users / 50, users);
+        TreeSet<Integer> optedIn = random(random, users * 3 / 4, users);
+
+        Set<Integer> toSet = new HashSet<>(tos), ccSet = new HashSet<>(ccs), bccSet = new HashSet<>(bccs);
+        for (Set<Integer> role : Arrays.asList(toSet, ccSet, bccSet)) {
+            role.removeAll(optedOut);
+            role.retainAll(optedIn);
+        }
+        ccSet.removeAll(toSet);
+        bccSet.removeAll(toSet);
+        bccSet.removeAll(ccSet);
+
+        UserBitmap out = bitmap(optedOut), in = bitmap(optedIn);
+        UserBitmap to = bitmap(tos).andNot(out).and(in);
+        UserBitmap cc = bitmap(ccs).andNot(out).and(in).andNot(to);
+        UserBitmap bcc = bitmap(bccs).andNot(out).and(in).andNot(to.or(cc));
+        assertBitmap(new TreeSet<>(toSet), to);
+        assertBitmap(new TreeSet<>(ccSet), cc);
+        assertBitmap(new TreeSet<>(bccSet), bcc);
+    }
+
+    private static TreeSet<Integer> random(Random random, int size, int bound) {
+        TreeSet<Integer> indexes = new TreeSet<>();
+        while (indexes.size() < size) {
+            indexes.add(random.nextInt(bound));
+        }
+        return indexes;
+    }
+}
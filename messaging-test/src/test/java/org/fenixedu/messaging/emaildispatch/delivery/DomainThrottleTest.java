@@ -0,0 +1,177 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+
+import org.fenixedu.messaging.emaildispatch.delivery.DomainThrottle.Feedback;
+import org.fenixedu.messaging.emaildispatch.delivery.DomainThrottle.Permit;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multiset;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+/* Runs with the default limits: 3000 recipients per minute, bursts of 500, 2 connections and 30s of initial backoff per
+ * domain. The throttle is shared, so each test uses domains of its own. */
+public class DomainThrottleTest {
+
+    private static final DomainThrottle throttle = DomainThrottle.getInstance();
+
+    private static Multiset<String> recipients(String domain, int count) {
+        return ImmutableMultiset.<String> builder().addCopies(domain, count).build();
+    }
+
+    @Test
+    public void domainOf() {
+        assertEquals("example.com", DomainThrottle.domainOf("someone@Example.COM "));
+        assertEquals("example.com", DomainThrottle.domainOf("\"a@b\"@example.com"));
+        assertEquals("", DomainThrottle.domainOf("nobody"));
+    }
+
+    @Test
+    public void connectionsAreCapped() {
+        Multiset<String> domain = recipients("connections.test", 1);
+        Permit first = throttle.tryAcquire(domain), second = throttle.tryAcquire(domain);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(throttle.tryAcquire(domain));
+        first.release(Feedback.ACCEPTED);
+        Permit third = throttle.tryAcquire(domain);
+        assertNotNull(third);
+        second.release(Feedback.ACCEPTED);
+        third.release(Feedback.ACCEPTED);
+    }
+
+    @Test
+    public void throttledDomainDoesNotHoldBackOthers() {
+        Multiset<String> busy = recipients("busy.test", 1);
+        Permit first = throttle.tryAcquire(busy), second = throttle.tryAcquire(busy);
+        assertNull(throttle.tryAcquire(busy));
+        Permit other = throttle.tryAcquire(recipients("idle.test", 1));
+        assertNotNull(other);
+        other.release(Feedback.ACCEPTED);
+        first.release(Feedback.ACCEPTED);
+        second.release(Feedback.ACCEPTED);
+    }
+
+    @Test
+    public void failedAcquisitionKeepsOtherDomainsIntact() {
+        Multiset<String> backedOff = recipients("backedoff.test", 1);
+        throttle.tryAcquire(backedOff).release(Feedback.DEFERRED);
+        Multiset<String> both = ImmutableMultiset.<String> builder().addCopies("available.test", 500).add("backedoff.test")
+                .build();
+        assertNull(throttle.tryAcquire(both));
+        // the tokens taken from available.test while acquiring both were given back
+        Permit permit = throttle.tryAcquire(recipients("available.test", 500));
+        assertNotNull(permit);
+        permit.release(Feedback.ACCEPTED);
+    }
+
+    @Test
+    public void burstIsRefilledAtTheDomainRate() {
+        Permit burst = throttle.tryAcquire(recipients("burst.test", 500));
+        assertNotNull(burst);
+        burst.release(Feedback.ACCEPTED);
+        Multiset<String> more = recipients("burst.test", 100);
+        assertNull(throttle.tryAcquire(more));
+        // 100 recipients at 50 per second
+        long delay = throttle.delay(more);
+        assertTrue("Unexpected delay " + delay, delay > 1000 && delay <= 2000);
+    }
+
+    @Test
+    public void oversizedBatchIsLetThroughOnAFullBucket() {
+        Permit permit = throttle.tryAcquire(recipients("oversized.test", 800));
+        assertNotNull(permit);
+        permit.release(Feedback.ACCEPTED);
+        // the bucket is left in debt for the excess 300 recipients plus a full one
+        assertTrue(throttle.delay(recipients("oversized.test", 1)) > 5000);
+    }
+
+    @Test
+    public void deferralBacksTheDomainOff() {
+        Multiset<String> domain = recipients("deferring.test", 1);
+        throttle.tryAcquire(domain).release(Feedback.DEFERRED);
+        assertNull(throttle.tryAcquire(domain));
+        long delay = throttle.delay(domain);
+        assertTrue("Unexpected delay " + delay, delay > 25000 && delay <= 30000);
+    }
+
+    @Test
+    public void failureDoesNotBackTheDomainOff() {
+        Multiset<String> domain = recipients("failing.test", 1);
+        throttle.tryAcquire(domain).release(Feedback.FAILED);
+        Permit permit = throttle.tryAcquire(domain);
+        assertNotNull(permit);
+        permit.release(Feedback.ACCEPTED);
+    }
+
+    @Test
+    public void mixedDeliveryOnlyBacksOffDeferringDomains() {
+        Multiset<String> mixed = ImmutableMultiset.of("refusing.mixed.test", "accepting.mixed.test", "accepting.mixed.test");
+        throttle.tryAcquire(mixed).release(Collections.singleton("refusing.mixed.test"), Feedback.ACCEPTED);
+        assertNull(throttle.tryAcquire(recipients("refusing.mixed.test", 1)));
+        Permit permit = throttle.tryAcquire(recipients("accepting.mixed.test", 1));
+        assertNotNull(permit);
+        permit.release(Feedback.ACCEPTED);
+    }
+
+    @Test
+    public void mixedDeliveriesDoNotTakeConnections() {
+        Multiset<String> large = recipients("large.test", 1);
+        Permit first = throttle.tryAcquire(large), second = throttle.tryAcquire(large);
+        assertNull(throttle.tryAcquire(large));
+        // the connections of large.test are taken, a delivery batching it with other domains still goes through
+        Permit mixed = throttle.tryAcquire(ImmutableMultiset.of("large.test", "small.test"));
+        assertNotNull(mixed);
+        mixed.release(Feedback.ACCEPTED);
+        Multiset<String> small = recipients("small.test", 1);
+        Permit a = throttle.tryAcquire(small), b = throttle.tryAcquire(small);
+        assertNotNull(a);
+        assertNotNull(b);
+        a.release(Feedback.ACCEPTED);
+        b.release(Feedback.ACCEPTED);
+        first.release(Feedback.ACCEPTED);
+        second.release(Feedback.ACCEPTED);
+    }
+
+    @Test
+    public void deferredDomains() throws Exception {
+        InternetAddress deferred = new InternetAddress("someone@deferring.com"), invalid = new InternetAddress("nobody@b.com");
+        InternetAddress accepted = new InternetAddress("someone@c.com");
+        Set<String> domains = ImmutableSet.of("deferring.com", "b.com", "c.com");
+        SMTPAddressFailedException later = new SMTPAddressFailedException(deferred, "RCPT TO", 451, "try again later");
+        later.setNextException(new SMTPAddressFailedException(invalid, "RCPT TO", 550, "no such user"));
+        SendFailedException recipients = new SendFailedException("Invalid Addresses", later, new Address[0],
+                new Address[] { deferred, accepted }, new Address[] { invalid });
+        assertEquals(Collections.singleton("deferring.com"), DomainThrottle.deferredDomains(recipients, domains));
+
+        SMTPSendFailedException message = new SMTPSendFailedException("DATA", 452, "insufficient storage", null,
+                new Address[0], new Address[] { deferred, invalid, accepted }, new Address[0]);
+        assertEquals(domains, DomainThrottle.deferredDomains(message, domains));
+        assertTrue(DomainThrottle.deferredDomains(new MessagingException("Connection reset"), domains).isEmpty());
+    }
+
+    @Test
+    public void isDeferral() throws Exception {
+        InternetAddress address = new InternetAddress("someone@example.com");
+        assertTrue(DomainThrottle.isDeferral(new SMTPAddressFailedException(address, "RCPT TO", 451, "try again later")));
+        assertFalse(DomainThrottle.isDeferral(new SMTPAddressFailedException(address, "RCPT TO", 550, "no such user")));
+        assertTrue(DomainThrottle.isDeferral(new MessagingException("Sending failed",
+                new SMTPAddressFailedException(address, "RCPT TO", 421, "too many connections"))));
+        assertFalse(DomainThrottle.isDeferral(new MessagingException("Sending failed")));
+    }
+}
@@ -0,0 +1,74 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+public class FairShareSchedulerTest {
+
+    private static List<String> items(String prefix, int count) {
+        return IntStream.rangeClosed(1, count).mapToObj(i -> prefix + i).collect(Collectors.toList());
+    }
+
+    @Test
+    public void equalWeightsAlternate() {
+        Map<String, List<String>> queues = new LinkedHashMap<>();
+        queues.put("a@example.com", items("a", 4));
+        queues.put("b@example.com", items("b", 2));
+        assertEquals(Arrays.asList("a1", "b1", "a2", "b2", "a3", "a4"), new FairShareScheduler(null).interleave(queues));
+    }
+
+    @Test
+    public void weightsSetTheShare() {
+        Map<String, List<String>> queues = new LinkedHashMap<>();
+        queues.put("light@example.com", items("l", 3));
+        queues.put("heavy@example.com", items("h", 4));
+        // ties between senders go to the one seen first
+        assertEquals(Arrays.asList("h1", "l1", "h2", "h3", "l2", "h4", "l3"),
+                new FairShareScheduler("Heavy@Example.com=2").interleave(queues));
+    }
+
+    @Test
+    public void smallSenderIsNotQueuedBehindAMassMailing() {
+        Map<String, List<String>> queues = new LinkedHashMap<>();
+        queues.put("registrar@example.com", items("r", 1000));
+        queues.put("department@example.com", items("d", 3));
+        List<String> schedule = new FairShareScheduler(null).interleave(queues);
+        assertEquals(1003, schedule.size());
+        assertTrue(schedule.indexOf("d3") < 6);
+    }
+
+    @Test
+    public void eachSenderKeepsItsOrder() {
+        Map<String, List<String>> queues = new LinkedHashMap<>();
+        queues.put("a@example.com", items("a", 50));
+        queues.put("b@example.com", items("b", 20));
+        queues.put("c@example.com", Collections.emptyList());
+        List<String> schedule = new FairShareScheduler("a@example.com=3,b@example.com=0.5").interleave(queues);
+        List<String> as = new ArrayList<>(schedule), bs = new ArrayList<>(schedule);
+        as.removeIf(item -> !item.startsWith("a"));
+        bs.removeIf(item -> !item.startsWith("b"));
+        assertEquals(items("a", 50), as);
+        assertEquals(items("b", 20), bs);
+    }
+
+    @Test
+    public void shareHoldsWhileBothAreBacklogged() {
+        Map<String, List<String>> queues = new LinkedHashMap<>();
+        queues.put("a@example.com", items("a", 300));
+        queues.put("b@example.com", items("b", 300));
+        List<String> first = new FairShareScheduler("a@example.com=3").interleave(queues).subList(0, 200);
+        long as = first.stream().filter(item -> item.startsWith("a")).count();
+        assertEquals(150, as);
+    }
+}
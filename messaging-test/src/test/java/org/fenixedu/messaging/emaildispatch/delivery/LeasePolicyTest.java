@@ -0,0 +1,144 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+public class LeasePolicyTest {
+    private static final DateTime NOW = new DateTime(), PAST = NOW.minusMinutes(1), FUTURE = NOW.plusMinutes(1);
+
+    /* Stands in for a mime message handler, each claim being a transaction on its own. */
+    private static final class Handler {
+        private final int id;
+        private DateTime nextAttempt;
+        private String owner;
+        private DateTime expiry;
+        private boolean delivered = false;
+
+        private Handler(int id) {
+            this.id = id;
+        }
+
+        private synchronized boolean claim(String node, long duration) {
+            DateTime now = new DateTime();
+            if (delivered || LeasePolicy.unavailableUntil(nextAttempt, owner, expiry, node, now) != null) {
+                return false;
+            }
+            owner = node;
+            expiry = now.plus(duration);
+            return true;
+        }
+
+        private synchronized void release(String node) {
+            if (LeasePolicy.isHeldBy(owner, node)) {
+                owner = null;
+                expiry = null;
+            }
+        }
+
+        private synchronized void delivered() {
+            delivered = true;
+        }
+    }
+
+    @Test
+    public void unleasedHandlerIsAvailable() {
+        assertNull(LeasePolicy.unavailableUntil(null, null, null, "a", NOW));
+        assertNull(LeasePolicy.unavailableUntil(PAST, null, null, "a", NOW));
+    }
+
+    @Test
+    public void handlerWaitsForItsRetry() {
+        assertEquals(FUTURE, LeasePolicy.unavailableUntil(FUTURE, null, null, "a", NOW));
+        assertEquals(FUTURE, LeasePolicy.unavailableUntil(FUTURE, "a", FUTURE.plusMinutes(1), "a", NOW));
+    }
+
+    @Test
+    public void leaseHoldsOtherNodesOff() {
+        assertEquals(FUTURE, LeasePolicy.unavailableUntil(null, "a", FUTURE, "b", NOW));
+        // the holder renews its own lease
+        assertNull(LeasePolicy.unavailableUntil(null, "a", FUTURE, "a", NOW));
+    }
+
+    @Test
+    public void expiredLeaseIsTakenOver() {
+        assertNull(LeasePolicy.unavailableUntil(null, "crashed", PAST, "b", NOW));
+        assertNull(LeasePolicy.unavailableUntil(null, "crashed", null, "b", NOW));
+    }
+
+    @Test
+    public void onlyTheHolderReleases() {
+        assertTrue(LeasePolicy.isHeldBy("a", "a"));
+        assertFalse(LeasePolicy.isHeldBy("a", "b"));
+        assertFalse(LeasePolicy.isHeldBy(null, "a"));
+    }
+
+    @Test
+    public void nodesDeliverDisjointHandlers() throws Exception {
+        List<Handler> handlers = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            handlers.add(new Handler(i));
+        }
+        Map<Integer, String> deliveredBy = new ConcurrentHashMap<>();
+        AtomicInteger duplicates = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> nodes = new ArrayList<>();
+        for (int n = 0; n < 4; n++) {
+            String node = "node-" + n;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (Handler handler : handlers) {
+                    if (handler.claim(node, 60000)) {
+                        if (deliveredBy.putIfAbsent(handler.id, node) != null) {
+                            duplicates.incrementAndGet();
+                        }
+                        handler.delivered();
+                    }
+                }
+            });
+            nodes.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : nodes) {
+            thread.join();
+        }
+        assertEquals(0, duplicates.get());
+        assertEquals(handlers.size(), deliveredBy.size());
+    }
+
+    @Test
+    public void crashedNodeIsTakenOverOnceItsLeaseExpires() throws Exception {
+        Handler abandoned = new Handler(0), held = new Handler(1), released = new Handler(2);
+        assertTrue(abandoned.claim("crashed", 100));
+        assertTrue(held.claim("busy", 60000));
+        assertTrue(released.claim("throttled", 60000));
+        released.release("throttled");
+
+        assertFalse(abandoned.claim("survivor", 60000));
+        assertFalse(held.claim("survivor", 60000));
+        assertTrue(released.claim("survivor", 60000));
+        // a node that lost its lease does not release the one taken over
+        released.release("throttled");
+        assertFalse(released.claim("other", 60000));
+
+        Thread.sleep(200);
+        assertTrue(abandoned.claim("survivor", 60000));
+        assertFalse(held.claim("survivor", 60000));
+    }
+}
@@ -0,0 +1,65 @@
+package org.fenixedu.messaging.emaildispatch.delivery;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+/* Runs with the default policy: 1 minute of initial backoff, at most 6 hours, 8 attempts and 72 hours. */
+public class RetryPolicyTest {
+    private static final long MINUTE = 60000, HOUR = 60 * MINUTE;
+
+    private static void assertBackoff(int attempts, long min, long max) {
+        long before = System.currentTimeMillis();
+        long next = RetryPolicy.nextAttempt(attempts).getMillis();
+        long after = System.currentTimeMillis();
+        assertTrue("Retry of attempt " + attempts + " too soon", next >= before + min);
+        assertTrue("Retry of attempt " + attempts + " too late", next <= after + max);
+    }
+
+    @Test
+    public void backoffDoublesWithEachAttempt() {
+        assertBackoff(1, MINUTE / 2, MINUTE);
+        assertBackoff(2, MINUTE, 2 * MINUTE);
+        assertBackoff(3, 2 * MINUTE, 4 * MINUTE);
+        assertBackoff(6, 16 * MINUTE, 32 * MINUTE);
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        assertBackoff(10, 3 * HOUR, 6 * HOUR);
+        // shifts are bounded, so a huge number of attempts does not overflow
+        assertBackoff(1000, 3 * HOUR, 6 * HOUR);
+    }
+
+    @Test
+    public void noAttemptsIsTheFirstBackoff() {
+        assertBackoff(0, MINUTE / 2, MINUTE);
+    }
+
+    @Test
+    public void retriesAreJittered() {
+        Set<Long> delays = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            delays.add(RetryPolicy.nextAttempt(5).getMillis() / 1000);
+        }
+        assertTrue(delays.size() > 1);
+    }
+
+    @Test
+    public void exhaustedAfterTooManyAttempts() {
+        assertFalse(RetryPolicy.isExhausted(7, null));
+        assertTrue(RetryPolicy.isExhausted(8, null));
+        assertFalse(RetryPolicy.isExhausted(7, new DateTime()));
+    }
+
+    @Test
+    public void exhaustedAfterTooLong() {
+        assertFalse(RetryPolicy.isExhausted(1, new DateTime().minusHours(71)));
+        assertTrue(RetryPolicy.isExhausted(1, new DateTime().minusHours(73)));
+    }
+}
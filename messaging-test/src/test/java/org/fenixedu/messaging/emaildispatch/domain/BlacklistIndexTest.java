@@ -0,0 +1,125 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/* Counters are identified by strings, so that no domain objects have to be created. */
+public class BlacklistIndexTest {
+    private static final long INTERVAL = 1000;
+    private static final double DELTA = 1e-9;
+
+    private static Set<String> set(String... addresses) {
+        return new HashSet<>(Arrays.asList(addresses));
+    }
+
+    @Test
+    public void stampIsOnlyReadOncePerInterval() {
+        BlacklistIndex<String> index = new BlacklistIndex<>(1, 0);
+        assertFalse(index.isDue(INTERVAL, INTERVAL));
+        assertTrue(index.isDue(INTERVAL + 1, INTERVAL));
+        assertTrue(index.isCurrent(1, 1500));
+        assertFalse(index.isDue(2500, INTERVAL));
+        assertTrue(index.isDue(2501, INTERVAL));
+    }
+
+    @Test
+    public void changesByOtherNodesOutdateTheIndex() {
+        BlacklistIndex<String> index = new BlacklistIndex<>(1, 0);
+        assertFalse(index.isCurrent(2, 1500));
+        // still due, so that the next lookup rebuilds it
+        assertTrue(index.isDue(1500, INTERVAL));
+    }
+
+    @Test
+    public void ownChangesKeepTheIndexCurrent() {
+        BlacklistIndex<String> index = new BlacklistIndex<>(1, 0);
+        index.stamped(1, 5);
+        index.stamped(5, 6);
+        assertTrue(index.isCurrent(6, 1500));
+    }
+
+    @Test
+    public void ownChangesAfterOthersDoNotHideThem() {
+        BlacklistIndex<String> index = new BlacklistIndex<>(1, 0);
+        index.stamped(3, 5);
+        assertFalse(index.isCurrent(5, 1500));
+        index.stamped(5, 6);
+        assertFalse(index.isCurrent(6, 1500));
+    }
+
+    @Test
+    public void invalidAddressesAreAView() {
+        BlacklistIndex<String> index = new BlacklistIndex<>(1, 0);
+        Set<String> invalid = index.getInvalid();
+        assertTrue(invalid.isEmpty());
+        index.invalid("user@example.org");
+        index.invalid("user@example.org");
+        assertEquals(Collections.singleton("user@example.org"), invalid);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void invalidAddressesAreReadOnly() {
+        new BlacklistIndex<>(1, 0).getInvalid().add("user@example.org");
+    }
+
+    @Test
+    public void addressesAboveAWeight() {
+        BlacklistIndex<String> index = new BlacklistIndex<>(1, 0);
+        index.failures("a", "ca", 1);
+        index.failures("b", "cb", 2);
+        index.failures("c", "cc", 2);
+        index.failures("d", "cd", 3);
+        assertEquals(set("b", "c", "d"), index.above(2, true));
+        assertEquals(set("d"), index.above(2, false));
+        assertEquals(set("a", "b", "c", "d"), index.above(Double.NEGATIVE_INFINITY, true));
+        assertTrue(index.above(3, false).isEmpty());
+    }
+
+    @Test
+    public void updatesMoveAddresses() {
+        BlacklistIndex<String> index = new BlacklistIndex<>(1, 0);
+        index.failures("a", "ca", 1);
+        index.failures("b", "cb", 2);
+        index.failures("a", "ca", 3);
+        assertEquals(set("a"), index.above(2, false));
+        assertEquals(3, index.weight("a"), DELTA);
+        // setting the same weight again, as a restarted transaction does, changes nothing
+        index.failures("a", "ca", 3);
+        assertEquals(3, index.weight("a"), DELTA);
+        assertEquals(set("a", "b"), index.above(2, true));
+    }
+
+    @Test
+    public void countersOfTheSameAddressAddUp() {
+        BlacklistIndex<String> index = new BlacklistIndex<>(1, 0);
+        index.failures("a", "node1", 2);
+        index.failures("a", "node2", 2);
+        // 4 and 4 failures are 8
+        assertEquals(3, index.weight("a"), DELTA);
+        assertTrue(set("node1", "node2").contains(index.counter("a")));
+        index.forget("a", "node1");
+        assertEquals(2, index.weight("a"), DELTA);
+        assertEquals("node2", index.counter("a"));
+    }
+
+    @Test
+    public void forgottenCountersLeaveNoAddress() {
+        BlacklistIndex<String> index = new BlacklistIndex<>(1, 0);
+        index.failures("a", "ca", 2);
+        index.forget("a", "other");
+        assertEquals("ca", index.counter("a"));
+        index.forget("a", "ca");
+        assertNull(index.counter("a"));
+        assertEquals(Double.NEGATIVE_INFINITY, index.weight("a"), 0);
+        assertTrue(index.above(Double.NEGATIVE_INFINITY, true).isEmpty());
+    }
+}
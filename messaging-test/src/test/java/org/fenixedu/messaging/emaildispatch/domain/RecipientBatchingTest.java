@@ -0,0 +1,134 @@
+package org.fenixedu.messaging.emaildispatch.domain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.fenixedu.messaging.emaildispatch.delivery.DomainThrottle;
+import org.fenixedu.messaging.emaildispatch.domain.RecipientPlanner.Batch;
+import org.fenixedu.messaging.emaildispatch.domain.RecipientPlanner.Batcher;
+import org.fenixedu.messaging.emaildispatch.domain.RecipientPlanner.Role;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Compares the moving window with batching by domain, and by mail exchanger, on synthetic recipient lists: the number of
+ * mime messages created and the relay fan-out, that is the number of remote SMTP transactions the relay opens to forward
+ * them, one per distinct mail exchanger of each message.
+ */
+public class RecipientBatchingTest {
+    private static final int MAX_RECIPIENTS = 50;
+
+    /* the small domains are hosted by a handful of providers, as resolving their MX records would show */
+    private static final Map<String, String> MX = mx();
+
+    private static final class Result {
+        private int handlers, fanOut, maxFanOut;
+    }
+
+    private static Map<String, String> mx() {
+        ImmutableMap.Builder<String, String> mx = ImmutableMap.builder();
+        mx.put("hotmail.com", "outlook.com").put("live.com", "outlook.com");
+        for (int i = 0; i < 5000; i++) {
+            mx.put("d" + i + ".example", "mx" + i % 20 + ".hosting.example");
+        }
+        return mx.build();
+    }
+
+    /* Recipients in user order, which is unrelated to their domains. Most belong to the institution and a few large
+     * providers, the rest to a long tail of small domains. */
+    private static List<String> institutional(int size, Random random) {
+        List<String> addresses = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            double p = random.nextDouble();
+            String domain = p < 0.55 ? "university.example" : p < 0.80 ? "gmail.com" : p < 0.86 ? "hotmail.com"
+                    : p < 0.90 ? "outlook.com" : p < 0.92 ? "live.com" : "d" + random.nextInt(3000) + ".example";
+            addresses.add("user" + i + "@" + domain);
+        }
+        return addresses;
+    }
+
+    private static List<String> longTail(int size, int domains, Random random) {
+        List<String> addresses = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            addresses.add("user" + i + "@d" + random.nextInt(domains) + ".example");
+        }
+        return addresses;
+    }
+
+    private static String exchanger(String address) {
+        String domain = DomainThrottle.domainOf(address);
+        return MX.getOrDefault(domain, domain);
+    }
+
+    private static Result run(List<String> addresses, Function<String, String> destination) {
+        Result result = new Result();
+        List<Batch> batches = new ArrayList<>();
+        Batcher batcher = new Batcher(destination, MAX_RECIPIENTS, (locale, batch) -> batches.add(batch));
+        addresses.forEach(address -> batcher.add(Role.BCC, Locale.ENGLISH, address));
+        batcher.flush();
+        result.handlers = batches.size();
+        int recipients = 0;
+        for (Batch batch : batches) {
+            assertTrue(batch.size() <= MAX_RECIPIENTS);
+            Set<String> domains = new HashSet<>();
+            Stream.of(batch.getTos(), batch.getCcs(), batch.getBccs()).flatMap(List::stream)
+                    .forEach(address -> domains.add(exchanger(address)));
+            result.fanOut += domains.size();
+            result.maxFanOut = Math.max(result.maxFanOut, domains.size());
+            recipients += batch.size();
+        }
+        assertEquals(addresses.size(), recipients);
+        return result;
+    }
+
+    /* Every message to a single destination is forwarded in a single transaction, and grouping by mail exchanger never
+     * needs more messages than grouping by domain. */
+    private static void compare(List<String> addresses) {
+        Result window = run(addresses, address -> "");
+        Result domain = run(addresses, DomainThrottle::domainOf);
+        Result mx = run(addresses, RecipientBatchingTest::exchanger);
+        assertEquals(domain.handlers, domain.fanOut);
+        assertEquals(1, domain.maxFanOut);
+        assertEquals(mx.handlers, mx.fanOut);
+        assertEquals(1, mx.maxFanOut);
+        assertTrue(domain.fanOut <= window.fanOut);
+        assertTrue(mx.handlers <= domain.handlers);
+        // the window packs every message full, whatever the destinations
+        assertEquals((addresses.size() + MAX_RECIPIENTS - 1) / MAX_RECIPIENTS, window.handlers);
+    }
+
+    @Test
+    public void institutional() {
+        List<String> addresses = institutional(100000, new Random(7));
+        compare(addresses);
+        // the relay forwards a window batch to most of the destinations of its recipients
+        assertTrue(run(addresses, address -> "").fanOut > 2 * run(addresses, DomainThrottle::domainOf).fanOut);
+    }
+
+    @Test
+    public void longTail() {
+        compare(longTail(20000, 5000, new Random(7)));
+    }
+
+    @Test
+    public void singleDomain() {
+        List<String> addresses = longTail(10000, 1, new Random(7));
+        Collections.shuffle(addresses, new Random(7));
+        compare(addresses);
+        Result window = run(addresses, address -> ""), domain = run(addresses, DomainThrottle::domainOf);
+        assertEquals(window.handlers, domain.handlers);
+        assertEquals(window.fanOut, domain.fanOut);
+    }
+}